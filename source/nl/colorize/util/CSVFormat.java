@@ -6,15 +6,34 @@
 
 package nl.colorize.util;
 
-import com.google.common.base.CharMatcher;
 import com.google.common.base.Preconditions;
-import com.google.common.base.Splitter;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.StringReader;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.Iterator;
 import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.ForkJoinPool;
 import java.util.function.Function;
 import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 /**
  * Describes the format of a CSV file, which is necessary since the CSV file
@@ -37,9 +56,9 @@ public class CSVFormat {
     public static final CSVFormat TAB = withHeaders('\t');
     public static final CSVFormat SEMICOLON = withHeaders(';');
 
-    private static final CharMatcher NEWLINE_MATCHER = CharMatcher.is('\n');
     private static final String ESCAPED_NEWLINE = "\\n";
-    private static final CharMatcher QUOTE_MATCHER = CharMatcher.is('"');
+    private static final long MIN_CHUNK_SIZE = 1L << 20;
+    private static final long MAX_CHUNK_SIZE = 1L << 30;
 
     private CSVFormat(boolean headers, char delimiter, String lineSeparator, boolean quotes) {
         this.headers = headers;
@@ -106,56 +125,285 @@ public class CSVFormat {
      * the first record in the file is assumed to contain the headers.
      */
     public List<CSVRecord> parseCSV(String csv) {
-        List<CSVRecord> records = new ArrayList<>();
-        List<String> columns = null;
+        try (Stream<CSVRecord> records = parseCSV(new StringReader(csv))) {
+            return records.collect(Collectors.toCollection(ArrayList::new));
+        }
+    }
+
+    /**
+     * Parses CSV records from the specified reader using this
+     * {@link CSVFormat}, and returns a stream of the resulting records. If
+     * this CSV format includes header information, the first record is
+     * assumed to contain the headers. Records are parsed lazily while the
+     * stream is being consumed, so only the current record is kept in
+     * memory. This allows CSV files to be parsed regardless of their size.
+     * <p>
+     * Closing the stream will also close the reader. I/O errors that occur
+     * while reading are thrown as {@link UncheckedIOException}s when the
+     * stream is consumed.
+     */
+    public Stream<CSVRecord> parseCSV(Reader reader) {
+        return stream(new RecordIterator(reader, null));
+    }
+
+    private Stream<CSVRecord> stream(RecordIterator iterator) {
+        int characteristics = Spliterator.ORDERED | Spliterator.NONNULL;
+        Spliterator<CSVRecord> spliterator = Spliterators.spliteratorUnknownSize(iterator, characteristics);
+        return StreamSupport.stream(spliterator, false).onClose(iterator::close);
+    }
+
+    /**
+     * Parses CSV records from the specified input stream using this
+     * {@link CSVFormat}, and returns a stream of the resulting records.
+     * See {@link #parseCSV(Reader)} for details.
+     */
+    public Stream<CSVRecord> parseCSV(InputStream input, Charset charset) {
+        return parseCSV(new InputStreamReader(input, charset));
+    }
 
-        for (String line : Splitter.on(lineSeparator).omitEmptyStrings().split(csv)) {
-            List<String> cells = parseLine(line);
+    /**
+     * Parses CSV records from the specified file using this
+     * {@link CSVFormat}, and returns a stream of the resulting records. The
+     * stream should be closed after use, so that the file is also closed.
+     * See {@link #parseCSV(Reader)} for details.
+     *
+     * @throws IOException if an I/O error occurs while opening the file.
+     */
+    public Stream<CSVRecord> parseCSV(Path file, Charset charset) throws IOException {
+        return parseCSV(Files.newBufferedReader(file, charset));
+    }
 
-            if (headers && columns == null) {
-                columns = cells;
-            } else {
-                records.add(new CSVRecord(columns, cells, this));
+    /**
+     * Parses CSV records from the specified file using this
+     * {@link CSVFormat}, using multiple threads to parse different parts of
+     * the file in parallel. The file is memory-mapped and split into chunks,
+     * with each chunk starting at a record boundary. The chunks are then
+     * parsed using a parallel stream, which means they are processed by
+     * the common {@link ForkJoinPool} unless the stream is consumed from
+     * within a different pool.
+     * <p>
+     * If {@code ordered} is true, the records in the returned stream will
+     * be in the same order as they appear in the file. Otherwise, records
+     * are returned in arbitrary order, which can improve performance
+     * when the order is not relevant.
+     * <p>
+     * The stream should be closed after use, so that the file is also
+     * closed. See {@link #parseParallel(ByteBuffer, Charset, boolean)} for
+     * the requirements on the file's character encoding.
+     *
+     * @throws IOException if an I/O error occurs while opening the file.
+     * @throws IllegalArgumentException if the charset is not supported
+     *         for parallel parsing.
+     */
+    public Stream<CSVRecord> parseParallel(Path file, Charset charset, boolean ordered) throws IOException {
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+        long size = channel.size();
+
+        try {
+            ByteRegion region = (offset, length) -> channel.map(FileChannel.MapMode.READ_ONLY, offset, length);
+            return parseParallel(region, size, charset, ordered, getChunkCount(size))
+                .onClose(() -> closeChannel(channel));
+        } catch (RuntimeException e) {
+            closeChannel(channel);
+            throw e;
+        }
+    }
+
+    /**
+     * Parses CSV records from the specified buffer using this
+     * {@link CSVFormat}, using multiple threads to parse different parts of
+     * the buffer in parallel. The buffer's contents between its current
+     * position and limit are parsed. The buffer itself is not modified, so
+     * it can be used for memory-mapped regions of larger files. See
+     * {@link #parseParallel(Path, Charset, boolean)} for details on how the
+     * records are parsed.
+     * <p>
+     * Finding record boundaries is done on the encoded bytes, which requires
+     * quotes and line separators to be encoded as single bytes that do not
+     * otherwise occur in the encoded text. This is the case for UTF-8 and
+     * ISO-8859-1, but not for UTF-16.
+     *
+     * @throws IllegalArgumentException if the charset is not supported
+     *         for parallel parsing.
+     */
+    public Stream<CSVRecord> parseParallel(ByteBuffer buffer, Charset charset, boolean ordered) {
+        return parseParallel(buffer, charset, ordered, getChunkCount(buffer.remaining()));
+    }
+
+    /**
+     * Parses CSV records from the specified buffer in parallel, splitting
+     * the buffer into the specified number of chunks. This is mainly
+     * useful for testing, since normally the number of chunks is
+     * determined from the buffer size and the number of available threads.
+     */
+    Stream<CSVRecord> parseParallel(ByteBuffer buffer, Charset charset, boolean ordered, int chunks) {
+        ByteBuffer source = buffer.slice();
+        ByteRegion region = (offset, length) -> source.slice((int) offset, length);
+        return parseParallel(region, source.remaining(), charset, ordered, chunks);
+    }
+
+    private Stream<CSVRecord> parseParallel(ByteRegion region, long size, Charset charset,
+                                            boolean ordered, int chunks) {
+        byte[] separator = lineSeparator.getBytes(charset);
+        Preconditions.checkArgument(separator.length == lineSeparator.length() &&
+            "\"".getBytes(charset).length == 1, "Charset not supported: " + charset);
+        Preconditions.checkArgument(chunks >= 1, "Invalid number of chunks: " + chunks);
+
+        long start = 0L;
+        List<String> columns = null;
+
+        if (headers) {
+            long end = 0L;
+            do {
+                start = end;
+                end = findRecordStart(region, start, Math.min(size, start + MAX_CHUNK_SIZE), false, separator);
+                end = end == -1L ? Math.min(size, start + MAX_CHUNK_SIZE) : end;
+            } while (end - start == separator.length);
+
+            RecordIterator headerIterator = new RecordIterator(openRange(region, start, end, charset), null);
+            headerIterator.hasNext();
+            columns = headerIterator.columns;
+            start = end;
+
+            if (columns == null) {
+                return Stream.empty();
             }
         }
 
-        return records;
+        long[] boundaries = findChunkBoundaries(region, start, size, chunks, separator);
+        List<String> headerColumns = columns;
+
+        Stream<CSVRecord> records = IntStream.range(0, chunks)
+            .parallel()
+            .boxed()
+            .flatMap(i -> {
+                Reader reader = openRange(region, boundaries[i], boundaries[i + 1], charset);
+                return stream(new RecordIterator(reader, headerColumns));
+            });
+
+        return ordered ? records : records.unordered();
     }
 
-    private List<String> parseLine(String line) {
+    /**
+     * Splits the byte range between {@code start} and {@code size} into
+     * chunks, and returns the offset of the first record in each chunk,
+     * followed by {@code size}. Chunks that do not contain the start of a
+     * record are merged with the previous chunk, by giving them the same
+     * offset as the next chunk. When the CSV format uses quotes, the
+     * number of quotes in each chunk is counted first, so that it is known
+     * whether each chunk starts within a quoted cell.
+     */
+    private long[] findChunkBoundaries(ByteRegion region, long start, long size, int chunks, byte[] separator) {
+        long[] offsets = new long[chunks + 1];
+        for (int i = 0; i <= chunks; i++) {
+            offsets[i] = start + (size - start) * i / chunks;
+        }
+
+        boolean[] quoting = new boolean[chunks];
         if (quotes) {
-            return parseQuotedLine(line);
-        } else {
-            return Splitter.on(delimiter).splitToStream(line)
-                .map(cell -> cell.replace(ESCAPED_NEWLINE, "\n"))
-                .toList();
+            long[] quoteCounts = IntStream.range(0, chunks)
+                .parallel()
+                .mapToLong(i -> countQuotes(region, offsets[i], offsets[i + 1]))
+                .toArray();
+
+            for (int i = 1; i < chunks; i++) {
+                quoting[i] = quoting[i - 1] ^ (quoteCounts[i - 1] % 2 == 1);
+            }
+        }
+
+        long[] boundaries = IntStream.range(0, chunks + 1)
+            .parallel()
+            .mapToLong(i -> {
+                if (i == 0 || i == chunks) {
+                    return offsets[i];
+                }
+                return findRecordStart(region, offsets[i], offsets[i + 1], quoting[i], separator);
+            })
+            .toArray();
+
+        for (int i = chunks - 1; i > 0; i--) {
+            if (boundaries[i] == -1L) {
+                boundaries[i] = boundaries[i + 1];
+            }
+        }
+
+        return boundaries;
+    }
+
+    private long countQuotes(ByteRegion region, long from, long to) {
+        ByteBuffer bytes = map(region, from, to);
+        long count = 0L;
+
+        for (int i = 0; i < bytes.limit(); i++) {
+            if (bytes.get(i) == '"') {
+                count++;
+            }
         }
+
+        return count;
     }
 
-    private List<String> parseQuotedLine(String line) {
-        List<String> cells = new ArrayList<>();
-        StringBuilder buffer = new StringBuilder();
-        boolean quoting = false;
+    /**
+     * Returns the offset of the first record that starts within the
+     * specified byte range, which is directly after the first line
+     * separator that is not inside a quoted cell. Returns -1 if the range
+     * does not contain the start of a record.
+     */
+    private long findRecordStart(ByteRegion region, long from, long to, boolean quoting, byte[] separator) {
+        ByteBuffer bytes = map(region, from, to);
+
+        for (int i = 0; i < bytes.limit(); i++) {
+            byte b = bytes.get(i);
 
-        for (int i = 0; i < line.length(); i++) {
-            if (line.charAt(i) == delimiter && !quoting) {
-                cells.add(buffer.toString());
-                buffer.delete(0, buffer.length());
-            } else if (line.charAt(i) == '"') {
+            if (b == '"' && quotes) {
                 quoting = !quoting;
-                if (i > 0 && line.charAt(i - 1) == '\"') {
-                    buffer.append('"');
-                }
-            } else {
-                buffer.append(line.charAt(i));
+            } else if (b == separator[0] && !quoting && matches(bytes, i, separator)) {
+                return from + i + separator.length;
             }
         }
 
-        if (!buffer.isEmpty()) {
-            cells.add(buffer.toString());
+        return -1L;
+    }
+
+    private boolean matches(ByteBuffer bytes, int offset, byte[] separator) {
+        if (offset + separator.length > bytes.limit()) {
+            return false;
+        }
+
+        for (int i = 1; i < separator.length; i++) {
+            if (bytes.get(offset + i) != separator[i]) {
+                return false;
+            }
         }
+        return true;
+    }
 
-        return cells;
+    private Reader openRange(ByteRegion region, long from, long to, Charset charset) {
+        return new InputStreamReader(new ByteBufferInputStream(map(region, from, to)), charset);
+    }
+
+    private ByteBuffer map(ByteRegion region, long from, long to) {
+        Preconditions.checkState(to - from <= Integer.MAX_VALUE, "CSV record too large");
+
+        try {
+            return region.map(from, (int) (to - from));
+        } catch (IOException e) {
+            throw new UncheckedIOException("Error while reading CSV", e);
+        }
+    }
+
+    private static void closeChannel(FileChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            throw new UncheckedIOException("Error while closing CSV", e);
+        }
+    }
+
+    private int getChunkCount(long size) {
+        long parallelism = ForkJoinPool.getCommonPoolParallelism() * 4L;
+        long chunks = Math.max(Math.min(size / MIN_CHUNK_SIZE, parallelism), size / MAX_CHUNK_SIZE + 1);
+        return (int) Math.max(chunks, 1L);
     }
 
     /**
@@ -176,13 +424,13 @@ public class CSVFormat {
             if (headers) {
                 if (usedColumns.isEmpty()) {
                     usedColumns = record.getColumns();
-                    buffer.append(encodeRow(usedColumns));
+                    appendRow(buffer, usedColumns);
                 } else {
                     Preconditions.checkState(record.getColumns().equals(usedColumns));
                 }
             }
 
-            buffer.append(encodeRow(record.getCells()));
+            appendRow(buffer, record.getCells());
         }
 
         return buffer.toString();
@@ -193,34 +441,66 @@ public class CSVFormat {
      * line will end with a trailing line separator.
      */
     public String toCSV(CSVRecord record) {
-        return encodeRow(record.getCells());
+        StringBuilder buffer = new StringBuilder();
+        appendRow(buffer, record.getCells());
+        return buffer.toString();
     }
 
     /**
-     * Serializes the specified record using this CSV format. The serialized
-     * line will end with a trailing line separator. This method can be used
-     * for both rows and headers, since CSV files do not differentiate
-     * between the two apart from their location within the file.
+     * Serializes the specified record using this CSV format, and appends the
+     * result to the buffer. The serialized line will end with a trailing line
+     * separator. This method can be used for both rows and headers, since CSV
+     * files do not differentiate between the two apart from their location
+     * within the file.
      */
-    private String encodeRow(List<String> cells) {
+    void appendRow(StringBuilder buffer, List<String> cells) {
         Preconditions.checkArgument(!cells.isEmpty(), "Empty CSV record");
 
-        return cells.stream()
-            .map(this::encodeCell)
-            .collect(Collectors.joining(String.valueOf(delimiter))) + lineSeparator;
+        for (int i = 0; i < cells.size(); i++) {
+            if (i > 0) {
+                buffer.append(delimiter);
+            }
+            appendCell(buffer, cells.get(i));
+        }
+
+        buffer.append(lineSeparator);
     }
 
-    private String encodeCell(String value) {
-        CharMatcher delimiterMatcher = CharMatcher.is(delimiter);
-        String cell = NEWLINE_MATCHER.replaceFrom(value, ESCAPED_NEWLINE);
+    /**
+     * Appends a single cell to the buffer, one character at a time, so that
+     * no intermediate strings need to be created. With quotes, the cell is
+     * surrounded by quotes, quotes inside the cell are doubled, and newlines
+     * are written as-is. Without quotes, newlines are escaped, and quotes
+     * and delimiters inside the cell are removed.
+     */
+    private void appendCell(StringBuilder buffer, String value) {
+        if (quotes) {
+            buffer.append('"');
+        }
+
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+
+            if (c == '\n' && !quotes) {
+                buffer.append(ESCAPED_NEWLINE);
+            } else if (c == '"') {
+                if (quotes) {
+                    buffer.append("\"\"");
+                }
+            } else if (c != delimiter || quotes) {
+                buffer.append(c);
+            }
+        }
 
         if (quotes) {
-            return "\"" + QUOTE_MATCHER.replaceFrom(cell, "\"\"") + "\"";
-        } else {
-            return QUOTE_MATCHER.removeFrom(delimiterMatcher.removeFrom(cell));
+            buffer.append('"');
         }
     }
 
+    boolean hasHeaders() {
+        return headers;
+    }
+
     /**
      * Uses this CSV format to serialize a number of objects to CSV. The
      * specified callback function is used to map each object to a CSV record.
@@ -271,6 +551,246 @@ public class CSVFormat {
         return deserialize(records, mapper);
     }
 
+    /**
+     * Iterates over the records in a CSV file, reading the file one line at
+     * a time. Lines are separated using the CSV format's line separator,
+     * which means lines cannot be read using {@link java.io.BufferedReader},
+     * since that only supports the platform's line separators.
+     * <p>
+     * When the CSV format uses quotes, line separators within quoted cells
+     * do not end the line, as described in
+     * <a href="https://www.rfc-editor.org/rfc/rfc4180">RFC 4180</a>. This
+     * allows cells to contain actual newlines, so a single record can span
+     * multiple lines in the file.
+     * <p>
+     * Lines are read into a reusable character array, which is then split
+     * into cells in a single pass. Quotes, escaped newlines, and delimiters
+     * within quoted cells are all handled during this pass. Escaped newlines
+     * are only decoded when the CSV format does not use quotes, since quoted
+     * cells can contain actual newlines, and backslashes in quoted cells
+     * should be preserved. Cells are
+     * collected in a second reusable array, so the only objects created
+     * for each line are the cell strings themselves.
+     */
+    private class RecordIterator implements Iterator<CSVRecord> {
+
+        private Reader reader;
+        private char[] buffer;
+        private int position;
+        private int limit;
+        private char[] line;
+        private int lineLength;
+        private char[] cell;
+        private List<String> columns;
+        private CSVRecord next;
+        private boolean exhausted;
+
+        public RecordIterator(Reader reader, List<String> columns) {
+            this.reader = reader;
+            this.buffer = new char[8192];
+            this.position = 0;
+            this.limit = 0;
+            this.line = new char[256];
+            this.lineLength = 0;
+            this.cell = new char[256];
+            this.columns = columns;
+            this.next = null;
+            this.exhausted = false;
+        }
+
+        @Override
+        public boolean hasNext() {
+            if (next == null && !exhausted) {
+                next = readRecord();
+            }
+            return next != null;
+        }
+
+        @Override
+        public CSVRecord next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+
+            CSVRecord record = next;
+            next = null;
+            return record;
+        }
+
+        private CSVRecord readRecord() {
+            try {
+                while (readLine()) {
+                    if (lineLength > 0) {
+                        List<String> cells = parseLine();
+
+                        if (headers && columns == null) {
+                            columns = cells;
+                        } else {
+                            return new CSVRecord(columns, cells, CSVFormat.this);
+                        }
+                    }
+                }
+
+                exhausted = true;
+                return null;
+            } catch (IOException e) {
+                throw new UncheckedIOException("Error while reading CSV", e);
+            }
+        }
+
+        /**
+         * Reads the next line into the line buffer, without the line
+         * separator. Line separators within quoted cells are considered
+         * part of the line. Returns false once the end of the input has
+         * been reached.
+         */
+        private boolean readLine() throws IOException {
+            lineLength = 0;
+            char lastSeparatorChar = lineSeparator.charAt(lineSeparator.length() - 1);
+            boolean quoting = false;
+
+            while (true) {
+                if (position == limit) {
+                    limit = Math.max(reader.read(buffer), 0);
+                    position = 0;
+
+                    if (limit == 0) {
+                        return lineLength > 0;
+                    }
+                }
+
+                char c = buffer[position++];
+                if (lineLength == line.length) {
+                    line = Arrays.copyOf(line, line.length * 2);
+                }
+                line[lineLength++] = c;
+
+                if (c == '"' && quotes) {
+                    quoting = !quoting;
+                } else if (c == lastSeparatorChar && !quoting && endsWithLineSeparator()) {
+                    lineLength -= lineSeparator.length();
+                    return true;
+                }
+            }
+        }
+
+        private boolean endsWithLineSeparator() {
+            int offset = lineLength - lineSeparator.length();
+            if (offset < 0) {
+                return false;
+            }
+
+            for (int i = 0; i < lineSeparator.length(); i++) {
+                if (line[offset + i] != lineSeparator.charAt(i)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Splits the current line into cells. When the CSV format uses
+         * quotes, delimiters within quotes are considered part of the cell,
+         * and two consecutive quotes within quotes represent a literal quote.
+         * A trailing empty cell is ignored in this case, unless it was
+         * quoted. When the CSV format does not use quotes, quotes are
+         * considered normal characters, and escaped newlines are decoded.
+         */
+        private List<String> parseLine() {
+            if (cell.length < lineLength) {
+                cell = new char[line.length];
+            }
+
+            List<String> cells = new ArrayList<>();
+            int cellLength = 0;
+            boolean quoting = false;
+            boolean quoted = false;
+
+            for (int i = 0; i < lineLength; i++) {
+                char c = line[i];
+
+                if (quoting && c == '"') {
+                    if (i + 1 < lineLength && line[i + 1] == '"') {
+                        cell[cellLength++] = '"';
+                        i++;
+                    } else {
+                        quoting = false;
+                    }
+                } else if (!quoting && c == delimiter) {
+                    cells.add(new String(cell, 0, cellLength));
+                    cellLength = 0;
+                    quoted = false;
+                } else if (!quoting && c == '"' && quotes) {
+                    quoting = true;
+                    quoted = true;
+                } else if (c == '\\' && !quotes && i + 1 < lineLength && line[i + 1] == 'n') {
+                    cell[cellLength++] = '\n';
+                    i++;
+                } else {
+                    cell[cellLength++] = c;
+                }
+            }
+
+            if (!quotes || cellLength > 0 || quoted) {
+                cells.add(new String(cell, 0, cellLength));
+            }
+
+            return cells;
+        }
+
+        public void close() {
+            try {
+                reader.close();
+            } catch (IOException e) {
+                throw new UncheckedIOException("Error while closing CSV", e);
+            }
+        }
+    }
+
+    /**
+     * Provides access to a region of bytes, identified by its offset and
+     * length. This is used to parse both files and buffers in parallel,
+     * with files being memory-mapped one region at a time.
+     */
+    @FunctionalInterface
+    private interface ByteRegion {
+
+        public ByteBuffer map(long offset, int length) throws IOException;
+    }
+
+    /**
+     * Reads bytes from a {@link ByteBuffer}, starting at the buffer's
+     * current position.
+     */
+    private static class ByteBufferInputStream extends InputStream {
+
+        private ByteBuffer buffer;
+
+        public ByteBufferInputStream(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            return buffer.hasRemaining() ? buffer.get() & 0xFF : -1;
+        }
+
+        @Override
+        public int read(byte[] bytes, int offset, int length) {
+            if (length == 0) {
+                return 0;
+            }
+
+            if (!buffer.hasRemaining()) {
+                return -1;
+            }
+
+            int count = Math.min(length, buffer.remaining());
+            buffer.get(bytes, offset, count);
+            return count;
+        }
+    }
+
     /**
      * Creates a {@link CSVFormat} with the specified delimiter, which includes
      * column header information. The first record in the CSV will be used to
@@ -0,0 +1,137 @@
+//-----------------------------------------------------------------------------
+// Colorize Java Commons
+// Copyright 2007-2026 Colorize
+// Apache license (http://www.apache.org/licenses/LICENSE-2.0)
+//-----------------------------------------------------------------------------
+
+package nl.colorize.util;
+
+import com.google.common.base.Preconditions;
+
+import java.io.Closeable;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.List;
+
+/**
+ * Writes CSV records to a {@link Writer} or {@link OutputStream}, using a
+ * {@link CSVFormat} to serialize the records. Unlike
+ * {@link CSVFormat#toCSV(List)}, which serializes all records to a single
+ * string, this class writes records as they are provided. Records are
+ * collected in a buffer that is reused, and written to the underlying
+ * writer once the buffer is full or when {@link #flush()} is called. This
+ * allows large numbers of records to be written without needing to keep
+ * them in memory.
+ * <p>
+ * If the CSV format includes column header information, the columns of the
+ * first record are written before the first record itself. Records written
+ * afterwards are expected to have the same columns.
+ * <p>
+ * Instances of this class are <strong>not</strong> thread-safe.
+ */
+public class CSVWriter implements Closeable, Flushable {
+
+    private Writer writer;
+    private CSVFormat format;
+    private StringBuilder buffer;
+    private char[] chunk;
+    private List<String> columns;
+
+    private static final int BUFFER_SIZE = 8192;
+
+    public CSVWriter(Writer writer, CSVFormat format) {
+        this.writer = writer;
+        this.format = format;
+        this.buffer = new StringBuilder(BUFFER_SIZE);
+        this.chunk = new char[BUFFER_SIZE];
+        this.columns = null;
+    }
+
+    public CSVWriter(OutputStream output, Charset charset, CSVFormat format) {
+        this(new OutputStreamWriter(output, charset), format);
+    }
+
+    /**
+     * Writes the specified record. If the CSV format includes column header
+     * information, and this is the first record being written, the column
+     * headers are written first.
+     *
+     * @throws IOException if an I/O error occurs while writing.
+     * @throws IllegalStateException if the CSV format includes column header
+     *         information, but the record does not include column headers,
+     *         or includes different column headers than previous records.
+     */
+    public void write(CSVRecord record) throws IOException {
+        if (format.hasHeaders()) {
+            Preconditions.checkState(record.hasColumnInformation(), "Record has no columns");
+
+            if (columns == null) {
+                columns = record.getColumns();
+                writeRow(columns);
+            } else {
+                Preconditions.checkState(record.getColumns().equals(columns),
+                    "Record has different columns");
+            }
+        }
+
+        writeRow(record.getCells());
+    }
+
+    /**
+     * Writes a row consisting of the specified cells. This does not check
+     * for column header information, and can therefore also be used to
+     * write the column headers themselves.
+     *
+     * @throws IOException if an I/O error occurs while writing.
+     */
+    public void writeRow(List<String> cells) throws IOException {
+        format.appendRow(buffer, cells);
+
+        if (buffer.length() >= BUFFER_SIZE) {
+            writeBuffer();
+        }
+    }
+
+    /**
+     * Writes the buffer to the underlying writer. The buffer's contents are
+     * copied in chunks to a reusable array, since writing a
+     * {@link StringBuilder} directly would convert it to a string first.
+     */
+    private void writeBuffer() throws IOException {
+        for (int offset = 0; offset < buffer.length(); offset += chunk.length) {
+            int length = Math.min(chunk.length, buffer.length() - offset);
+            buffer.getChars(offset, offset + length, chunk, 0);
+            writer.write(chunk, 0, length);
+        }
+
+        buffer.setLength(0);
+    }
+
+    /**
+     * Writes all buffered records to the underlying writer, then flushes the
+     * underlying writer.
+     *
+     * @throws IOException if an I/O error occurs while writing.
+     */
+    @Override
+    public void flush() throws IOException {
+        writeBuffer();
+        writer.flush();
+    }
+
+    /**
+     * Writes all buffered records to the underlying writer, then closes the
+     * underlying writer.
+     *
+     * @throws IOException if an I/O error occurs while writing.
+     */
+    @Override
+    public void close() throws IOException {
+        writeBuffer();
+        writer.close();
+    }
+}
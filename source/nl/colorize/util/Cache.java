@@ -7,36 +7,378 @@
 package nl.colorize.util;
 
 import com.google.common.base.Preconditions;
+import com.google.common.base.Throwables;
+import com.google.common.collect.ImmutableList;
+import com.google.common.math.IntMath;
 
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.function.Function;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+import java.util.function.ToLongFunction;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 /**
  * Data structure for key/value pairs, where the value for each key is based on
  * an underlying compute function. The cache is lazy: values are only computed
- * when first requested. If the cache capacity has been exceeded, the oldest
+ * when first requested. If the cache capacity has been exceeded, values are
+ * removed based on the cache's {@link EvictionPolicy}. By default, the oldest
  * values are removed. Note that "oldest" means the values that were least
  * recently *calculated*, not the values that were least recently *accessed*.
+ * Use {@link EvictionPolicy#LRU} for the latter. When some keys are requested
+ * far more often than others, {@link EvictionPolicy#TINY_LFU} can be used to
+ * take the frequency of requests into account.
+ * <p>
+ * In addition to capacity, cached values can also expire after a certain
+ * amount of time. Expiry can be based on when the value was calculated, or
+ * on when the value was last accessed. Alternatively, the cache can refresh
+ * values in the background, so that the stale value can still be returned
+ * while the new value is being calculated.
  * <p>
  * Instances of this class are thread-safe, it is safe to access the cache from
- * different threads.
+ * different threads. By default, multiple threads that request the same
+ * missing key at the same time will all invoke the compute function. Use
+ * {@link #withAtomicLoading()} to ensure only one thread computes the value
+ * while the other threads wait for the result.
+ * <p>
+ * The cache capacity is normally based on the number of key/value pairs.
+ * When values can vary significantly in size, {@link #withWeigher} can be
+ * used to limit the cache to a maximum total weight instead, for example
+ * by using the size of each value in bytes as its weight.
+ * <p>
+ * Recording cache statistics can be enabled using {@link #withStats()}. The
+ * statistics can then be retrieved using {@link #getStats()}. Values that
+ * are removed from the cache because of capacity or expiry are published
+ * to {@link #getEvictions()}.
+ * <p>
+ * Multiple values can be retrieved at once using {@link #getAll(Iterable)}.
+ * If the values can be calculated more efficiently in bulk, a batch
+ * compute function can be provided using {@link #withBatchFunction}, which
+ * will then be used to calculate all missing values in a single call.
+ * <p>
+ * When the values do not all fit in memory, {@link #withOverflow} can be used
+ * to add a second tier to the cache. Values that are evicted from memory are
+ * then written to a memory-mapped file, and moved back into memory when they
+ * are requested again.
+ * <p>
+ * By default, the cache uses a single lock to protect its eviction order.
+ * Caches that are accessed by many threads at the same time can be split
+ * into multiple independent segments using {@link #withShards(int)}, which
+ * reduces contention between those threads.
  */
 public class Cache<K, V> {
 
     private Function<K, V> computeFunction;
-    private Map<K, V> contents;
-    private List<K> keyOrder;
+    private Function<Set<K>, Map<K, V>> batchFunction;
+    private Map<K, Entry<V>> contents;
+    private List<Segment> segments;
     private int capacity;
+    private ToLongFunction<V> weigher;
+    private long maxWeight;
+    private EvictionPolicy evictionPolicy;
+    private Map<K, CompletableFuture<V>> inFlight;
+    private LongSupplier timeSource;
+    private long expireAfterWrite;
+    private long expireAfterAccess;
+    private long refreshAfterWrite;
+    private Executor refreshExecutor;
+    private Set<K> refreshing;
+    private StatsCounter stats;
+    private volatile Subject<Tuple<K, V>> evictions;
+    private OverflowFile<K> overflow;
+    private Codec<V> overflowCodec;
+
+    private static final Logger LOGGER = LogHelper.getLogger(Cache.class);
 
     private Cache(Function<K, V> computeFunction, int capacity) {
         this.computeFunction = computeFunction;
+        this.batchFunction = null;
         this.contents = Platform.isTeaVM() ? new HashMap<>() : new ConcurrentHashMap<>();
-        this.keyOrder = new CopyOnWriteArrayList<>();
         this.capacity = capacity;
+        this.weigher = _ -> 1L;
+        this.maxWeight = Long.MAX_VALUE;
+        this.evictionPolicy = EvictionPolicy.FIFO;
+        this.inFlight = null;
+        this.timeSource = System::currentTimeMillis;
+        this.expireAfterWrite = 0L;
+        this.expireAfterAccess = 0L;
+        this.refreshAfterWrite = 0L;
+        this.refreshExecutor = null;
+        this.refreshing = null;
+        this.stats = null;
+        this.evictions = null;
+        this.overflow = null;
+        this.overflowCodec = null;
+        this.segments = createSegments(1);
+    }
+
+    /**
+     * Creates the specified number of segments, dividing the capacity and
+     * maximum weight between them. When these cannot be divided equally,
+     * the remainder is divided between the first segments, so that the
+     * total capacity and maximum weight of all segments remain exactly the
+     * same as those of the cache.
+     */
+    private List<Segment> createSegments(int count) {
+        Preconditions.checkArgument(count <= capacity && count <= maxWeight,
+            "Number of shards exceeds cache capacity: " + count);
+
+        List<Segment> result = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            int segmentCapacity = capacity / count + (i < capacity % count ? 1 : 0);
+            long segmentMaxWeight = maxWeight / count + (i < maxWeight % count ? 1L : 0L);
+            result.add(new Segment(segmentCapacity, segmentMaxWeight));
+        }
+        return List.copyOf(result);
+    }
+
+    /**
+     * Replaces the cache's segments after changing the configuration that is
+     * used by the segments. Any values that were already cached are removed.
+     */
+    private void resetSegments() {
+        invalidate();
+        segments = createSegments(segments.size());
+    }
+
+    /**
+     * Changes the strategy that is used to decide which values should be
+     * removed once the cache capacity has been exceeded. This method is
+     * intended to be called directly after creating the cache, before it
+     * is being used. Any values that were already cached are removed.
+     *
+     * @return This cache, for method chaining.
+     */
+    public Cache<K, V> withEvictionPolicy(EvictionPolicy evictionPolicy) {
+        this.evictionPolicy = evictionPolicy;
+        resetSegments();
+        return this;
+    }
+
+    /**
+     * Limits the cache based on the total weight of all cached values, in
+     * addition to the number of key/value pairs. The specified function is
+     * used to determine the weight of each value when it is added to the
+     * cache. Once the total weight exceeds {@code maxWeight}, values are
+     * removed according to the eviction policy until the total weight is
+     * within the budget again. A single value that is heavier than the
+     * budget will therefore not remain in the cache. This method is intended
+     * to be called directly after creating the cache, before it is being
+     * used. Any values that were already cached are removed.
+     *
+     * @return This cache, for method chaining.
+     * @throws IllegalArgumentException if the maximum weight is not positive,
+     *         or is less than the number of shards.
+     */
+    public Cache<K, V> withWeigher(ToLongFunction<V> weigher, long maxWeight) {
+        Preconditions.checkArgument(maxWeight > 0L, "Invalid maximum weight: " + maxWeight);
+        Preconditions.checkArgument(maxWeight >= segments.size(), "Maximum weight less than shards");
+
+        this.weigher = weigher;
+        this.maxWeight = maxWeight;
+        resetSegments();
+        return this;
+    }
+
+    /**
+     * Splits this cache into the specified number of independent segments.
+     * Keys are assigned to segments based on their hash code. Each segment
+     * has its own lock and eviction order, and receives an equal share of
+     * the cache's capacity and maximum weight. This reduces contention when
+     * the cache is accessed by many threads at the same time. The downside
+     * is that the eviction order is no longer exact: values are evicted
+     * based on the eviction order within their segment, not based on the
+     * eviction order of the entire cache. This method is intended to be
+     * called directly after creating the cache, before it is being used.
+     * Any values that were already cached are removed.
+     *
+     * @return This cache, for method chaining.
+     * @throws IllegalArgumentException if the number of shards is not
+     *         positive, or exceeds the cache capacity or maximum weight.
+     */
+    public Cache<K, V> withShards(int shards) {
+        Preconditions.checkArgument(shards > 0, "Invalid number of shards: " + shards);
+
+        List<Segment> sharded = createSegments(shards);
+        invalidate();
+        segments = sharded;
+        return this;
+    }
+
+    /**
+     * Provides a function that is able to calculate values for multiple keys
+     * in a single call. This function will be used by {@link #getAll} and
+     * {@link #precompute(Iterable)} to calculate all values that are not yet
+     * cached, instead of invoking the normal compute function for each key.
+     * Keys that are not included in the map returned by the batch function
+     * will be calculated using the normal compute function. This method is
+     * intended to be called directly after creating the cache, before it is
+     * being used.
+     *
+     * @return This cache, for method chaining.
+     */
+    public Cache<K, V> withBatchFunction(Function<Set<K>, Map<K, V>> batchFunction) {
+        this.batchFunction = batchFunction;
+        return this;
+    }
+
+    /**
+     * Enables atomic loading, meaning that the compute function is invoked
+     * at most once for the same key at the same time. When multiple threads
+     * request a key that is not yet cached, one thread computes the value
+     * while the other threads wait for its result. If the compute function
+     * throws an exception, that exception is rethrown in all waiting
+     * threads. This method is intended to be called directly after creating
+     * the cache, before it is being used.
+     * <p>
+     * The compute function should not recursively request the same key from
+     * this cache, since that would make the thread wait for itself.
+     *
+     * @return This cache, for method chaining.
+     */
+    public Cache<K, V> withAtomicLoading() {
+        inFlight = new ConcurrentHashMap<>();
+        return this;
+    }
+
+    /**
+     * Changes the time source that is used for time-based expiry and
+     * refresh. The time source should return the current time in
+     * milliseconds. By default, {@link System#currentTimeMillis()} is used.
+     * Replacing the time source is mainly useful for testing.
+     *
+     * @return This cache, for method chaining.
+     */
+    public Cache<K, V> withTimeSource(LongSupplier timeSource) {
+        this.timeSource = timeSource;
+        return this;
+    }
+
+    /**
+     * Removes cached values once the specified amount of time has passed
+     * since the value was calculated. Requesting the key after that will
+     * calculate a new value. Expired values are removed when their key is
+     * requested again, or when {@link #cleanUp()} is called.
+     *
+     * @return This cache, for method chaining.
+     * @throws IllegalArgumentException if the duration is not positive.
+     */
+    public Cache<K, V> withExpireAfterWrite(Duration expiry) {
+        this.expireAfterWrite = toMillis(expiry);
+        return this;
+    }
+
+    /**
+     * Removes cached values once the specified amount of time has passed
+     * since the value was last requested. Requesting the key after that will
+     * calculate a new value. Expired values are removed when their key is
+     * requested again, or when {@link #cleanUp()} is called.
+     *
+     * @return This cache, for method chaining.
+     * @throws IllegalArgumentException if the duration is not positive.
+     */
+    public Cache<K, V> withExpireAfterAccess(Duration expiry) {
+        this.expireAfterAccess = toMillis(expiry);
+        return this;
+    }
+
+    /**
+     * Recalculates cached values in the background once the specified amount
+     * of time has passed since the value was calculated. The refresh is
+     * triggered by the first request for the key after that time. The stale
+     * value is returned while the refresh is being performed, so the caller
+     * does not need to wait for the new value. The refresh is performed on
+     * the specified executor.
+     * <p>
+     * If the refresh fails, or if the executor rejects the refresh, the
+     * stale value is kept and a new refresh is attempted the next time the
+     * key is requested.
+     *
+     * @return This cache, for method chaining.
+     * @throws IllegalArgumentException if the duration is not positive.
+     */
+    public Cache<K, V> withRefreshAfterWrite(Duration interval, Executor executor) {
+        this.refreshAfterWrite = toMillis(interval);
+        this.refreshExecutor = executor;
+        this.refreshing = ConcurrentHashMap.newKeySet();
+        return this;
+    }
+
+    /**
+     * Recalculates cached values in the background once the specified amount
+     * of time has passed since the value was calculated. This is equivalent
+     * to {@link #withRefreshAfterWrite(Duration, Executor)}, using the
+     * common fork/join pool to perform the refresh.
+     *
+     * @return This cache, for method chaining.
+     * @throws IllegalArgumentException if the duration is not positive.
+     */
+    public Cache<K, V> withRefreshAfterWrite(Duration interval) {
+        return withRefreshAfterWrite(interval, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Enables recording statistics on cache hits, misses, loads, and
+     * evictions. Recording statistics is disabled by default. The counters
+     * are designed to have low overhead even when the cache is accessed
+     * from many different threads at the same time.
+     *
+     * @return This cache, for method chaining.
+     */
+    public Cache<K, V> withStats() {
+        this.stats = new StatsCounter();
+        return this;
+    }
+
+    /**
+     * Adds a second tier to this cache, which stores values that have been
+     * evicted from memory in a memory-mapped file. When such a value is
+     * requested, it is read from the file and moved back into memory, instead
+     * of calculating the value again. The file is used as a ring buffer: once
+     * it is full, the oldest values in the file are overwritten. Values are
+     * converted to and from bytes using the specified codec. This method is
+     * intended to be called directly after creating the cache, before it is
+     * being used.
+     * <p>
+     * Values that expire are not written to the file. The file's contents are
+     * not preserved between runs, any existing file will be overwritten.
+     *
+     * @return This cache, for method chaining.
+     * @throws IOException if the file cannot be created or mapped.
+     * @throws IllegalArgumentException if the maximum file size is not
+     *         positive.
+     */
+    public Cache<K, V> withOverflow(Path file, int maxFileSize, Codec<V> codec) throws IOException {
+        Preconditions.checkArgument(maxFileSize > 0, "Invalid file size: " + maxFileSize);
+
+        this.overflow = new OverflowFile<>(file, maxFileSize);
+        this.overflowCodec = codec;
+        return this;
+    }
+
+    private static long toMillis(Duration duration) {
+        Preconditions.checkArgument(duration.isPositive(), "Invalid duration: " + duration);
+        return duration.toMillis();
     }
 
     /**
@@ -46,28 +388,391 @@ public class Cache<K, V> {
      * it, then return it.
      */
     public V get(K key) {
-        if (contents.containsKey(key)) {
-            return contents.get(key);
+        V cached = lookup(key);
+
+        if (stats != null) {
+            LongAdder counter = cached != null ? stats.hits : stats.misses;
+            counter.increment();
         }
 
-        V value = computeFunction.apply(key);
+        if (cached != null) {
+            return cached;
+        }
 
-        if (value != null) {
-            contents.put(key, value);
-            keyOrder.add(key);
-            protectCapacity();
+        if (inFlight != null) {
+            return loadAtomically(key);
+        } else {
+            return load(key);
+        }
+    }
+
+    private V lookup(K key) {
+        Entry<V> entry = contents.get(key);
+
+        if (entry == null) {
+            return overflow != null ? promote(key) : null;
         }
 
+        long now = currentTime();
+
+        if (isExpired(entry, now)) {
+            remove(key, entry);
+            return null;
+        }
+
+        entry.accessTime = now;
+        if (evictionPolicy != EvictionPolicy.FIFO) {
+            segmentFor(key).markAccessed(key);
+        }
+        refreshIfStale(key, entry, now);
+        return entry.value;
+    }
+
+    private V load(K key) {
+        V value = compute(key);
+        store(key, value);
         return value;
     }
 
-    private void protectCapacity() {
-        if (keyOrder.size() > capacity) {
-            K evicted = keyOrder.removeFirst();
-            contents.remove(evicted);
+    private V compute(K key) {
+        return recordLoad(1, () -> computeFunction.apply(key));
+    }
+
+    /**
+     * Performs an operation that loads the specified number of values, and
+     * records the outcome in the statistics if those are being recorded.
+     */
+    private <R> R recordLoad(int loads, Supplier<R> operation) {
+        if (stats == null) {
+            return operation.get();
+        }
+
+        long start = System.nanoTime();
+
+        try {
+            R result = operation.get();
+            stats.loadSuccesses.add(loads);
+            return result;
+        } catch (RuntimeException | Error e) {
+            stats.loadFailures.add(loads);
+            throw e;
+        } finally {
+            stats.totalLoadTime.add(System.nanoTime() - start);
+        }
+    }
+
+    private void store(K key, V value) {
+        if (value != null) {
+            long now = currentTime();
+            store(key, value, now, now);
+        }
+    }
+
+    private void store(K key, V value, long writeTime, long accessTime) {
+        long weight = weigher.applyAsLong(value);
+        Preconditions.checkArgument(weight >= 0L, "Invalid weight for " + key + ": " + weight);
+        Entry<V> entry = new Entry<>(value, writeTime, weight);
+        entry.accessTime = accessTime;
+        List<Tuple<K, Entry<V>>> evicted = segmentFor(key).store(key, entry);
+
+        for (Tuple<K, Entry<V>> eviction : evicted) {
+            publishEviction(Tuple.of(eviction.left(), eviction.right().value));
+            spill(eviction.left(), eviction.right());
+        }
+    }
+
+    /**
+     * Writes an evicted value to the overflow file, along with its
+     * timestamps so that expiry still applies once the value is moved back
+     * into memory. Values that have already expired are not written.
+     */
+    private void spill(K key, Entry<V> entry) {
+        if (overflow != null && !isExpired(entry.writeTime, entry.accessTime, currentTime())) {
+            try {
+                byte[] data = overflowCodec.encode(entry.value);
+                overflow.write(key, data, entry.writeTime, entry.accessTime);
+            } catch (RuntimeException e) {
+                LOGGER.log(Level.WARNING, "Failed to write cached value for " + key, e);
+            }
+        }
+    }
+
+    /**
+     * Moves a value from the overflow file back into memory. Returns null if
+     * the overflow file does not contain a value for the key, or if the value
+     * has expired while it was stored in the file. The value keeps its
+     * original write time, so that it does not live longer than values that
+     * remained in memory.
+     */
+    private V promote(K key) {
+        Spilled spilled = overflow.take(key);
+        if (spilled == null) {
+            return null;
+        }
+
+        long now = currentTime();
+        if (isExpired(spilled.writeTime(), spilled.accessTime(), now)) {
+            return null;
+        }
+
+        try {
+            V value = overflowCodec.decode(spilled.data());
+            store(key, value, spilled.writeTime(), now);
+            return value;
+        } catch (RuntimeException e) {
+            LOGGER.log(Level.WARNING, "Failed to read cached value for " + key, e);
+            return null;
+        }
+    }
+
+    private V loadAtomically(K key) {
+        CompletableFuture<V> pending = new CompletableFuture<>();
+        CompletableFuture<V> existing = inFlight.putIfAbsent(key, pending);
+
+        if (existing != null) {
+            return awaitLoad(existing);
+        }
+
+        try {
+            // Another thread might have finished loading the value in between
+            // the cache miss and registering this thread as the loader.
+            V value = lookup(key);
+            if (value == null) {
+                value = load(key);
+            }
+            pending.complete(value);
+            return value;
+        } catch (RuntimeException | Error e) {
+            pending.completeExceptionally(e);
+            throw e;
+        } finally {
+            inFlight.remove(key, pending);
+        }
+    }
+
+    private V awaitLoad(CompletableFuture<V> pending) {
+        try {
+            return pending.join();
+        } catch (CompletionException e) {
+            Throwables.throwIfUnchecked(e.getCause());
+            throw e;
+        }
+    }
+
+    private Segment segmentFor(K key) {
+        if (segments.size() == 1) {
+            return segments.getFirst();
+        }
+
+        int hash = key.hashCode();
+        hash ^= hash >>> 16;
+        return segments.get(Math.floorMod(hash, segments.size()));
+    }
+
+    private void publishEviction(Tuple<K, V> eviction) {
+        if (stats != null) {
+            stats.evictions.increment();
+        }
+
+        Subject<Tuple<K, V>> subject = evictions;
+        if (subject != null) {
+            subject.next(eviction);
+        }
+    }
+
+    /**
+     * Returns the current time according to the time source, but only if
+     * the cache actually uses time-based expiry or refresh. This avoids
+     * querying the time source on every cache hit when it is not needed.
+     */
+    private long currentTime() {
+        if (expireAfterWrite == 0L && expireAfterAccess == 0L && refreshAfterWrite == 0L) {
+            return 0L;
+        }
+        return timeSource.getAsLong();
+    }
+
+    private boolean isExpired(Entry<V> entry, long now) {
+        return isExpired(entry.writeTime, entry.accessTime, now);
+    }
+
+    private boolean isExpired(long writeTime, long accessTime, long now) {
+        return (expireAfterWrite > 0L && now - writeTime >= expireAfterWrite) ||
+            (expireAfterAccess > 0L && now - accessTime >= expireAfterAccess);
+    }
+
+    private void refreshIfStale(K key, Entry<V> entry, long now) {
+        if (refreshAfterWrite > 0L && now - entry.writeTime >= refreshAfterWrite
+                && refreshing.add(key)) {
+            try {
+                refreshExecutor.execute(() -> refresh(key));
+            } catch (RuntimeException e) {
+                refreshing.remove(key);
+                LOGGER.log(Level.WARNING, "Failed to schedule refresh for " + key, e);
+            }
+        }
+    }
+
+    private void refresh(K key) {
+        try {
+            V value = compute(key);
+            if (contents.containsKey(key)) {
+                store(key, value);
+            }
+        } catch (RuntimeException e) {
+            LOGGER.log(Level.WARNING, "Failed to refresh cached value for " + key, e);
+        } finally {
+            refreshing.remove(key);
+        }
+    }
+
+    /**
+     * Returns the values mapped to the specified keys. Values that are
+     * currently cached are returned directly. All other values are calculated
+     * using the batch compute function, if one was provided, or otherwise
+     * using the normal compute function. The returned map will iterate over
+     * keys in the same order as they were provided, keys for which no value
+     * could be calculated are not included.
+     */
+    public Map<K, V> getAll(Iterable<K> keys) {
+        Map<K, V> result = new LinkedHashMap<>();
+        Set<K> missing = new LinkedHashSet<>();
+
+        for (K key : keys) {
+            if (!result.containsKey(key)) {
+                // Missing keys are temporarily mapped to null, so that the
+                // result will use the same iteration order as the keys.
+                V cached = lookup(key);
+                result.put(key, cached);
+                if (cached == null) {
+                    missing.add(key);
+                }
+            }
+        }
+
+        if (stats != null) {
+            stats.hits.add(result.size() - missing.size());
+            stats.misses.add(missing.size());
+        }
+
+        if (!missing.isEmpty()) {
+            Map<K, V> loaded = loadAll(missing);
+            for (K key : missing) {
+                V value = loaded.get(key);
+                if (value != null) {
+                    result.put(key, value);
+                } else {
+                    result.remove(key);
+                }
+            }
+        }
+
+        return result;
+    }
+
+    private Map<K, V> loadAll(Set<K> keys) {
+        Map<K, V> loaded = new HashMap<>();
+
+        if (batchFunction != null) {
+            loadBatch(keys, loaded);
+        }
+
+        for (K key : keys) {
+            if (!loaded.containsKey(key)) {
+                V value = inFlight != null ? loadAtomically(key) : load(key);
+                if (value != null) {
+                    loaded.put(key, value);
+                }
+            }
+        }
+
+        return loaded;
+    }
+
+    /**
+     * Loads the specified keys using the batch function. When atomic loading
+     * is enabled, every key is first registered as being loaded by this
+     * thread, so that other threads requesting the same key wait for the
+     * batch instead of loading the key again. Keys that are already being
+     * loaded by another thread are not included in the batch, and their
+     * values are awaited afterward instead. Keys that are not included in
+     * the batch result are loaded using the normal compute function.
+     */
+    private void loadBatch(Set<K> keys, Map<K, V> loaded) {
+        Map<K, CompletableFuture<V>> claimed = new LinkedHashMap<>();
+        Map<K, CompletableFuture<V>> awaiting = new LinkedHashMap<>();
+
+        for (K key : keys) {
+            CompletableFuture<V> pending = new CompletableFuture<>();
+            CompletableFuture<V> existing = inFlight != null ? inFlight.putIfAbsent(key, pending) : null;
+
+            if (existing != null) {
+                awaiting.put(key, existing);
+            } else {
+                claimed.put(key, pending);
+            }
+        }
+
+        try {
+            Set<K> batchKeys = new LinkedHashSet<>();
+            for (K key : claimed.keySet()) {
+                // Another thread might have finished loading the value in
+                // between the cache miss and registering this thread.
+                V value = inFlight != null ? lookup(key) : null;
+                if (value != null) {
+                    loaded.put(key, value);
+                    claimed.get(key).complete(value);
+                } else {
+                    batchKeys.add(key);
+                }
+            }
+
+            if (!batchKeys.isEmpty()) {
+                Map<K, V> batch = recordLoad(batchKeys.size(),
+                    () -> batchFunction.apply(Collections.unmodifiableSet(batchKeys)));
+
+                for (K key : batchKeys) {
+                    V value = batch.get(key);
+                    if (value != null) {
+                        store(key, value);
+                    } else {
+                        value = load(key);
+                    }
+                    loaded.put(key, value);
+                    claimed.get(key).complete(value);
+                }
+            }
+        } catch (RuntimeException | Error e) {
+            claimed.values().forEach(pending -> pending.completeExceptionally(e));
+            throw e;
+        } finally {
+            if (inFlight != null) {
+                claimed.forEach(inFlight::remove);
+            }
+        }
+
+        for (Map.Entry<K, CompletableFuture<V>> entry : awaiting.entrySet()) {
+            V value = awaitLoad(entry.getValue());
+            if (value != null) {
+                loaded.put(entry.getKey(), value);
+            }
         }
     }
 
+    /**
+     * Retrieves the values mapped to the specified keys in a background
+     * thread. This is the asynchronous version of {@link #getAll(Iterable)},
+     * and can be used to warm the cache without blocking the current thread.
+     *
+     * @return A {@link Subject} that publishes the resulting key/value pairs
+     *         once all values have been retrieved, or publishes an error if
+     *         the values could not be calculated.
+     */
+    public Subject<Map<K, V>> getAllAsync(Iterable<K> keys) {
+        List<K> snapshot = ImmutableList.copyOf(keys);
+        return Subject.runAsync(() -> getAll(snapshot));
+    }
+
     /**
      * Precomputes the value for the specified key, so the cached value is used
      * when the key/value pair is retrieved at a later time.
@@ -78,12 +783,12 @@ public class Cache<K, V> {
 
     /**
      * Precomputes the values for the specified keys, so the cached values are
-     * used when the key/value pairs are retrieved at a later time.
+     * used when the key/value pairs are retrieved at a later time. If a batch
+     * compute function has been provided, it will be used to calculate all
+     * missing values in a single call.
      */
     public void precompute(Iterable<K> keys) {
-        for (K key : keys) {
-            precompute(key);
-        }
+        getAll(keys);
     }
 
     /**
@@ -91,16 +796,58 @@ public class Cache<K, V> {
      * was not yet computed this method does nothing.
      */
     public void invalidate(K key) {
-        contents.remove(key);
-        keyOrder.remove(key);
+        segmentFor(key).invalidate(key);
+
+        if (overflow != null) {
+            overflow.take(key);
+        }
     }
 
     /**
      * Forgets all cached key/value pairs in this cache.
      */
     public void invalidate() {
-        contents.clear();
-        keyOrder.clear();
+        for (Segment segment : segments) {
+            segment.clear();
+        }
+
+        if (overflow != null) {
+            overflow.clear();
+        }
+    }
+
+    /**
+     * Removes all values that have expired. Expired values are normally only
+     * removed when their key is requested again, which means values for keys
+     * that are never requested again would remain in the cache until they
+     * are evicted. This method can be called periodically to remove such
+     * values, which is mainly relevant for caches with a large or unlimited
+     * capacity. Removed values are published to {@link #getEvictions()}.
+     */
+    public void cleanUp() {
+        if (expireAfterWrite == 0L && expireAfterAccess == 0L) {
+            return;
+        }
+
+        long now = currentTime();
+        List<Map.Entry<K, Entry<V>>> expired = contents.entrySet().stream()
+            .filter(entry -> isExpired(entry.getValue(), now))
+            .toList();
+
+        for (Map.Entry<K, Entry<V>> entry : expired) {
+            remove(entry.getKey(), entry.getValue());
+        }
+    }
+
+    /**
+     * Removes the specified entry, but only if it is still the current entry
+     * for the key. This prevents an expired entry from accidentally removing
+     * a new value that was calculated by a different thread.
+     */
+    private void remove(K key, Entry<V> entry) {
+        if (segmentFor(key).remove(key, entry)) {
+            publishEviction(Tuple.of(key, entry.value));
+        }
     }
 
     /**
@@ -108,18 +855,72 @@ public class Cache<K, V> {
      * false if the value still needs to be computed.
      */
     protected boolean isCached(K key) {
-        return contents.containsKey(key);
+        Entry<V> entry = contents.get(key);
+        if (entry == null) {
+            Slot slot = overflow != null ? overflow.getSlot(key) : null;
+            return slot != null && !isExpired(slot.writeTime(), slot.accessTime(), currentTime());
+        }
+        return !isExpired(entry, currentTime());
+    }
+
+    /**
+     * Returns the total weight of all values that are currently cached. If
+     * no weigher has been configured using {@link #withWeigher}, every value
+     * has a weight of 1 and this method returns the number of cached values.
+     */
+    public long getTotalWeight() {
+        long totalWeight = 0L;
+        for (Segment segment : segments) {
+            totalWeight += segment.weight;
+        }
+        return totalWeight;
+    }
+
+    /**
+     * Returns a snapshot of the statistics that have been recorded for this
+     * cache. If recording statistics has not been enabled using
+     * {@link #withStats()}, all counters in the snapshot will be zero.
+     */
+    public Stats getStats() {
+        if (stats == null) {
+            return new Stats(0L, 0L, 0L, 0L, 0L, 0L);
+        }
+        return stats.snapshot();
+    }
+
+    /**
+     * Returns a {@link Subject} that publishes the key/value pairs that are
+     * removed from the cache by the cache itself, because its capacity was
+     * exceeded or because the value expired. Explicitly invalidating values
+     * is not considered an eviction. Events are only published once this
+     * method has been called for the first time, evictions that happened
+     * before that are not published. Evictions are not replayed, evictions
+     * that happen while there are no subscribers are discarded.
+     */
+    public Subject<Tuple<K, V>> getEvictions() {
+        synchronized (this) {
+            if (evictions == null) {
+                evictions = new Subject<Tuple<K, V>>().withReplay(Subject.ReplayPolicy.none());
+            }
+            return evictions;
+        }
     }
 
     @Override
     public String toString() {
+        List<K> keys = new ArrayList<>();
+        for (Segment segment : segments) {
+            keys.addAll(segment.getKeys());
+        }
+
         StringBuilder buffer = new StringBuilder();
-        buffer.append(String.format("Cache [%d]", contents.size()));
-        for (K key : keyOrder) {
+        buffer.append(String.format("Cache [%d]", keys.size()));
+        for (K key : keys) {
+            Entry<V> entry = contents.get(key);
             buffer.append("\n    ");
             buffer.append(key);
             buffer.append("=");
-            buffer.append(contents.get(key));
+            buffer.append(entry == null ? null : entry.value);
         }
         return buffer.toString();
     }
@@ -141,4 +942,482 @@ public class Cache<K, V> {
         Preconditions.checkArgument(capacity > 0, "Invalid capacity: " + capacity);
         return new Cache<>(computeFunction, capacity);
     }
+
+    /**
+     * Strategy for deciding which values should be removed from the cache
+     * once its capacity has been exceeded. All policies perform their
+     * bookkeeping in constant time.
+     */
+    public enum EvictionPolicy {
+        /**
+         * Removes the values that were least recently <em>calculated</em>.
+         * Cache hits do not influence the eviction order.
+         */
+        FIFO,
+
+        /**
+         * Removes the values that were least recently <em>accessed</em>.
+         * Every cache hit moves the value to the end of the eviction order.
+         */
+        LRU,
+
+        /**
+         * Window TinyLFU, which tracks how often keys are requested and uses
+         * this to decide whether new values should be admitted to the cache.
+         * New values first enter a small LRU window, which contains 1% of
+         * the capacity. Values that no longer fit in the window only replace
+         * a value in the main cache if they are requested more often. This
+         * policy performs better than FIFO or LRU when some keys are
+         * requested far more often than others, or when the cache is
+         * subjected to scans of keys that are only requested once.
+         */
+        TINY_LFU
+    }
+
+    /**
+     * Converts values to and from bytes, so that they can be stored outside
+     * of memory. Used by caches that have been configured with an overflow
+     * file using {@link #withOverflow}.
+     */
+    public interface Codec<V> {
+
+        public byte[] encode(V value);
+
+        public V decode(byte[] data);
+    }
+
+    /**
+     * Immutable snapshot of the statistics recorded for a cache.
+     *
+     * @param totalLoadTime The total time spent in the compute function, in
+     *                      nanoseconds.
+     * @param evictions The number of values that were removed by the cache
+     *                  because of capacity or expiry.
+     */
+    public record Stats(
+        long hits,
+        long misses,
+        long loadSuccesses,
+        long loadFailures,
+        long totalLoadTime,
+        long evictions
+    ) {
+
+        public long requests() {
+            return hits + misses;
+        }
+
+        /**
+         * Returns the ratio of requests that were cache hits, between 0.0 and
+         * 1.0. Returns 1.0 if there have not been any requests yet.
+         */
+        public double hitRate() {
+            long requests = requests();
+            return requests == 0L ? 1.0 : (double) hits / requests;
+        }
+
+        /**
+         * Returns the average time spent in the compute function, in
+         * nanoseconds. Returns 0.0 if there have not been any loads yet.
+         */
+        public double averageLoadTime() {
+            long loads = loadSuccesses + loadFailures;
+            return loads == 0L ? 0.0 : (double) totalLoadTime / loads;
+        }
+    }
+
+    /**
+     * Mutable counters used while recording statistics. This uses
+     * {@link LongAdder} so that threads updating the statistics at the same
+     * time do not contend on the same counter.
+     */
+    private static class StatsCounter {
+
+        private final LongAdder hits = new LongAdder();
+        private final LongAdder misses = new LongAdder();
+        private final LongAdder loadSuccesses = new LongAdder();
+        private final LongAdder loadFailures = new LongAdder();
+        private final LongAdder totalLoadTime = new LongAdder();
+        private final LongAdder evictions = new LongAdder();
+
+        public Stats snapshot() {
+            return new Stats(hits.sum(), misses.sum(), loadSuccesses.sum(), loadFailures.sum(),
+                totalLoadTime.sum(), evictions.sum());
+        }
+    }
+
+    /**
+     * Independent part of the cache's eviction bookkeeping. Every key is
+     * assigned to one segment, which tracks the eviction order for its keys
+     * and enforces its share of the cache's capacity. Each segment is used
+     * as the lock that guards its own state, as well as all changes to the
+     * cache contents for the keys that are assigned to it.
+     */
+    private class Segment {
+
+        private LinkedHashMap<K, Boolean> keyOrder;
+        private LinkedHashMap<K, Boolean> window;
+        private FrequencySketch sketch;
+        private int capacity;
+        private long maxWeight;
+        private volatile long weight;
+
+        public Segment(int capacity, long maxWeight) {
+            boolean accessOrder = evictionPolicy != EvictionPolicy.FIFO;
+            boolean frequency = evictionPolicy == EvictionPolicy.TINY_LFU;
+
+            this.keyOrder = new LinkedHashMap<>(16, 0.75f, accessOrder);
+            this.window = frequency ? new LinkedHashMap<>(16, 0.75f, true) : null;
+            this.sketch = frequency ? new FrequencySketch(capacity) : null;
+            this.capacity = capacity;
+            this.maxWeight = maxWeight;
+            this.weight = 0L;
+        }
+
+        /**
+         * Stores the specified entry, then returns the key/value pairs that
+         * were evicted to stay within capacity. Eviction events are published
+         * by the caller after releasing the lock, so that subscribers cannot
+         * block other threads.
+         */
+        public synchronized List<Tuple<K, Entry<V>>> store(K key, Entry<V> entry) {
+            Entry<V> previous = contents.put(key, entry);
+            weight += entry.weight - (previous == null ? 0L : previous.weight);
+            updateKeyOrder(key, previous == null);
+            return protectCapacity();
+        }
+
+        /**
+         * Only the LRU and TinyLFU eviction policies need to track access,
+         * which is done by looking up the key in the access-ordered map. For
+         * the FIFO policy this method is not called, so that cache hits do
+         * not need to acquire the lock.
+         */
+        public synchronized void markAccessed(K key) {
+            if (sketch != null) {
+                sketch.increment(key);
+                if (window.get(key) == null) {
+                    keyOrder.get(key);
+                }
+            } else {
+                keyOrder.get(key);
+            }
+        }
+
+        /**
+         * Updates the eviction order after a value has been stored. With the
+         * TinyLFU eviction policy, new keys always start out in the window
+         * segment, while existing keys remain in their current segment.
+         */
+        private void updateKeyOrder(K key, boolean added) {
+            if (window == null) {
+                keyOrder.put(key, Boolean.TRUE);
+            } else if (added) {
+                sketch.increment(key);
+                window.put(key, Boolean.TRUE);
+            } else if (window.get(key) == null) {
+                keyOrder.get(key);
+            }
+        }
+
+        /**
+         * Removes values until this segment is within its capacity again, and
+         * returns the key/value pairs that were evicted.
+         * <p>
+         * With the TinyLFU eviction policy, keys that no longer fit in the
+         * window become candidates for the main segment. If the main segment
+         * is full, the candidate is only admitted if it has been requested
+         * more often than the main segment's least recently used key,
+         * otherwise the candidate itself is evicted. This prevents keys that
+         * are only requested once from pushing popular keys out of the cache.
+         */
+        private List<Tuple<K, Entry<V>>> protectCapacity() {
+            List<Tuple<K, Entry<V>>> evicted = Collections.emptyList();
+
+            if (window != null) {
+                int windowCapacity = Math.max(1, capacity / 100);
+
+                while (window.size() > windowCapacity) {
+                    K candidate = window.pollFirstEntry().getKey();
+                    keyOrder.put(candidate, Boolean.TRUE);
+
+                    if (isOverCapacity()) {
+                        K victim = keyOrder.firstEntry().getKey();
+                        boolean admit = !victim.equals(candidate) &&
+                            sketch.frequency(candidate) > sketch.frequency(victim);
+                        K loser = admit ? victim : candidate;
+                        keyOrder.remove(loser);
+                        evicted = evict(loser, evicted);
+                    }
+                }
+            }
+
+            while (isOverCapacity()) {
+                Map.Entry<K, Boolean> oldest = keyOrder.isEmpty() ? window.pollFirstEntry() :
+                    keyOrder.pollFirstEntry();
+                evicted = evict(oldest.getKey(), evicted);
+            }
+
+            return evicted;
+        }
+
+        private boolean isOverCapacity() {
+            int size = keyOrder.size() + (window == null ? 0 : window.size());
+            return size > 0 && (size > capacity || weight > maxWeight);
+        }
+
+        private List<Tuple<K, Entry<V>>> evict(K key, List<Tuple<K, Entry<V>>> evicted) {
+            Entry<V> entry = contents.remove(key);
+            discard(entry);
+
+            if (entry == null) {
+                return evicted;
+            }
+
+            List<Tuple<K, Entry<V>>> result = evicted.isEmpty() ? new ArrayList<>() : evicted;
+            result.add(Tuple.of(key, entry));
+            return result;
+        }
+
+        public synchronized void invalidate(K key) {
+            discard(contents.remove(key));
+            removeKeyOrder(key);
+        }
+
+        /**
+         * Removes the specified entry, but only if it is still the current
+         * entry for the key. Returns true if the entry was removed.
+         */
+        public synchronized boolean remove(K key, Entry<V> entry) {
+            boolean removed = contents.remove(key, entry);
+            if (removed) {
+                discard(entry);
+                removeKeyOrder(key);
+            }
+            return removed;
+        }
+
+        public synchronized void clear() {
+            for (K key : getKeys()) {
+                contents.remove(key);
+            }
+
+            keyOrder.clear();
+            if (window != null) {
+                window.clear();
+            }
+            weight = 0L;
+        }
+
+        private void removeKeyOrder(K key) {
+            keyOrder.remove(key);
+            if (window != null) {
+                window.remove(key);
+            }
+        }
+
+        private void discard(Entry<V> entry) {
+            if (entry != null) {
+                weight -= entry.weight;
+            }
+        }
+
+        public synchronized List<K> getKeys() {
+            List<K> keys = new ArrayList<>(keyOrder.keySet());
+            if (window != null) {
+                keys.addAll(window.keySet());
+            }
+            return keys;
+        }
+    }
+
+    /**
+     * Count-min sketch that estimates how often keys have been requested,
+     * using 4-bit counters that are packed into a {@code long[]}. Each key
+     * is mapped to four counters, the estimate is the minimum of those
+     * counters. All counters are periodically halved, so that the sketch
+     * reflects recent popularity rather than popularity over the entire
+     * lifetime of the cache. Instances are not thread-safe, and are guarded
+     * by the segment that owns them.
+     */
+    private static class FrequencySketch {
+
+        private long[] table;
+        private int sampleSize;
+        private int additions;
+
+        private static final long[] SEEDS = {
+            0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L
+        };
+        private static final long RESET_MASK = 0x7777777777777777L;
+        private static final int MAX_TABLE_SIZE = 1 << 20;
+
+        public FrequencySketch(int capacity) {
+            this.table = new long[IntMath.ceilingPowerOfTwo(Math.clamp(capacity, 16, MAX_TABLE_SIZE))];
+            this.sampleSize = 10 * table.length;
+            this.additions = 0;
+        }
+
+        public void increment(Object key) {
+            int hash = key.hashCode();
+            boolean added = false;
+
+            for (long seed : SEEDS) {
+                int counterHash = counterHash(hash, seed);
+                int index = (counterHash >>> 4) & (table.length - 1);
+                int shift = (counterHash & 15) << 2;
+
+                if (((table[index] >>> shift) & 15L) < 15L) {
+                    table[index] += 1L << shift;
+                    added = true;
+                }
+            }
+
+            if (added && ++additions >= sampleSize) {
+                reset();
+            }
+        }
+
+        public int frequency(Object key) {
+            int hash = key.hashCode();
+            int frequency = 15;
+
+            for (long seed : SEEDS) {
+                int counterHash = counterHash(hash, seed);
+                int index = (counterHash >>> 4) & (table.length - 1);
+                int shift = (counterHash & 15) << 2;
+                frequency = Math.min(frequency, (int) ((table[index] >>> shift) & 15L));
+            }
+
+            return frequency;
+        }
+
+        private static int counterHash(int hash, long seed) {
+            long counterHash = (hash + seed) * seed;
+            counterHash += counterHash >>> 32;
+            return (int) counterHash;
+        }
+
+        private void reset() {
+            for (int i = 0; i < table.length; i++) {
+                table[i] = (table[i] >>> 1) & RESET_MASK;
+            }
+            additions /= 2;
+        }
+    }
+
+    /**
+     * Memory-mapped file that stores serialized values that have been
+     * evicted from memory. The file is used as a ring buffer: values are
+     * appended until the end of the file is reached, at which point writing
+     * continues from the start of the file. Values that are overwritten are
+     * removed from the index. Because values are always written in order,
+     * the oldest entry in the index is always the first one to be
+     * overwritten.
+     */
+    private static class OverflowFile<K> {
+
+        private MappedByteBuffer buffer;
+        private LinkedHashMap<K, Slot> index;
+        private int position;
+
+        public OverflowFile(Path file, int size) throws IOException {
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE,
+                    StandardOpenOption.READ, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING)) {
+                this.buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+            }
+
+            this.index = new LinkedHashMap<>();
+            this.position = 0;
+        }
+
+        public synchronized void write(K key, byte[] data, long writeTime, long accessTime) {
+            index.remove(key);
+
+            if (data.length > buffer.capacity()) {
+                return;
+            }
+
+            if (position + data.length > buffer.capacity()) {
+                // Entries located after the current position were written
+                // during the previous pass, and are the oldest entries.
+                while (!index.isEmpty() && index.firstEntry().getValue().offset() >= position) {
+                    index.pollFirstEntry();
+                }
+                position = 0;
+            }
+
+            int end = position + data.length;
+            while (!index.isEmpty() && overlaps(index.firstEntry().getValue(), end)) {
+                index.pollFirstEntry();
+            }
+
+            buffer.put(position, data);
+            index.put(key, new Slot(position, data.length, writeTime, accessTime));
+            position = end;
+        }
+
+        private boolean overlaps(Slot slot, int end) {
+            return slot.offset() >= position && slot.offset() < end;
+        }
+
+        /**
+         * Removes the value for the specified key from this file and returns
+         * it, or returns null if the file does not contain a value for the key.
+         */
+        public synchronized Spilled take(K key) {
+            Slot slot = index.remove(key);
+            if (slot == null) {
+                return null;
+            }
+
+            byte[] data = new byte[slot.length()];
+            buffer.get(slot.offset(), data);
+            return new Spilled(data, slot.writeTime(), slot.accessTime());
+        }
+
+        public synchronized Slot getSlot(K key) {
+            return index.get(key);
+        }
+
+        public synchronized void clear() {
+            index.clear();
+            position = 0;
+        }
+    }
+
+    /**
+     * Location of a serialized value within the overflow file, along with
+     * the value's timestamps at the time it was evicted from memory.
+     */
+    private record Slot(int offset, int length, long writeTime, long accessTime) {
+    }
+
+    /**
+     * Serialized value that has been read from the overflow file, along with
+     * the value's timestamps.
+     */
+    private record Spilled(byte[] data, long writeTime, long accessTime) {
+    }
+
+    /**
+     * Cached value, along with its weight and the timestamps that are needed
+     * for time-based expiry and refresh. Timestamps are only tracked when the
+     * cache actually uses time-based expiry or refresh, and are zero otherwise.
+     */
+    private static class Entry<V> {
+
+        private final V value;
+        private final long writeTime;
+        private final long weight;
+        private volatile long accessTime;
+
+        public Entry(V value, long writeTime, long weight) {
+            this.value = value;
+            this.writeTime = writeTime;
+            this.weight = weight;
+            this.accessTime = writeTime;
+        }
+    }
 }
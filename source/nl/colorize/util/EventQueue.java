@@ -9,9 +9,9 @@ package nl.colorize.util;
 import com.google.common.base.Preconditions;
 
 import java.util.List;
-import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.Flow.Subscriber;
 import java.util.concurrent.Flow.Subscription;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.function.Consumer;
 
 /**
@@ -19,7 +19,9 @@ import java.util.function.Consumer;
  * errors in queue, so that they can be processed at a later time.
  * <p>
  * Instances of this class are thread-safe: Events can be received and
- * processed on different threads.
+ * processed on different threads. Events can be received from any number
+ * of threads, but the event queue is intended to be flushed from a single
+ * thread. Receiving events and flushing the queue do not require locking.
  *
  * @param <T> The type of event that can be subscribed to.
  * @see Subject
@@ -27,10 +29,10 @@ import java.util.function.Consumer;
 public class EventQueue<T> implements Subscriber<T> {
 
     private Subscription subscription;
-    private List<Object> received;
+    private AtomicReference<Node> received;
 
     public EventQueue() {
-        this.received = new CopyOnWriteArrayList<>();
+        this.received = new AtomicReference<>(null);
     }
 
     @Override
@@ -41,18 +43,53 @@ public class EventQueue<T> implements Subscriber<T> {
 
     @Override
     public void onNext(T event) {
-        received.add(event);
+        push(new Node(event, false));
     }
 
     @Override
     public void onError(Throwable error) {
-        received.add(error);
+        push(new Node(error, true));
+    }
+
+    /**
+     * Adds a node to the queue. Received events are stored as a linked list
+     * in reverse order, so that adding an event only requires replacing the
+     * head of the list. This is done using compare-and-set, which allows
+     * events to be received from multiple threads without locking.
+     */
+    private void push(Node node) {
+        Node head;
+        do {
+            head = received.get();
+            node.next = head;
+        } while (!received.compareAndSet(head, node));
     }
 
     @Override
     public void onComplete() {
         subscription = null;
-        received.clear();
+        received.set(null);
+    }
+
+    /**
+     * Removes all events and errors from the queue in a single atomic
+     * operation, and returns them in the order they were received. Events
+     * that are received while the queue is being flushed will be included
+     * in the next flush. The nodes are reversed in place, so this does not
+     * require any allocation.
+     */
+    private Node drain() {
+        Node node = received.getAndSet(null);
+        Node reversed = null;
+
+        while (node != null) {
+            Node next = node.next;
+            node.next = reversed;
+            reversed = node;
+            node = next;
+        }
+
+        return reversed;
     }
 
     /**
@@ -63,24 +100,47 @@ public class EventQueue<T> implements Subscriber<T> {
      */
     @SuppressWarnings("unchecked")
     public void flush(Consumer<T> onEvent, Consumer<Exception> onError) {
-        List<Object> snapshot = List.copyOf(received);
-        received.clear();
+        for (Node node = drain(); node != null; node = node.next) {
+            if (node.error) {
+                onError.accept(toException((Throwable) node.value));
+            } else {
+                onEvent.accept((T) node.value);
+            }
+        }
+    }
 
-        for (Object event : snapshot) {
-            if (event instanceof Exception error) {
-                onError.accept(error);
+    /**
+     * Flushes the event queue, adding all events and errors that have been
+     * received since the last time the event queue was flushed to the
+     * specified lists. This is intended for situations where the event queue
+     * is flushed frequently, for example every frame, since the same lists
+     * can be reused every time. The lists are not cleared, events and errors
+     * are added to the end of the list in the order they were received.
+     */
+    @SuppressWarnings("unchecked")
+    public void flush(List<T> eventBuffer, List<Exception> errorBuffer) {
+        for (Node node = drain(); node != null; node = node.next) {
+            if (node.error) {
+                errorBuffer.add(toException((Throwable) node.value));
             } else {
-                onEvent.accept((T) event);
+                eventBuffer.add((T) node.value);
             }
         }
     }
 
+    private static Exception toException(Throwable error) {
+        if (error instanceof Exception exception) {
+            return exception;
+        }
+        return new RuntimeException(error);
+    }
+
     /**
      * Clears this event queue, without processing the events and errors that
      * are currently in it.
      */
     public void clear() {
-        received.clear();
+        received.set(null);
     }
 
     /**
@@ -92,4 +152,20 @@ public class EventQueue<T> implements Subscriber<T> {
         subject.subscribe(eventQueue);
         return eventQueue;
     }
+
+    /**
+     * Node in the linked list of received events and errors.
+     */
+    private static class Node {
+
+        private final Object value;
+        private final boolean error;
+        private Node next;
+
+        public Node(Object value, boolean error) {
+            this.value = value;
+            this.error = error;
+            this.next = null;
+        }
+    }
 }
@@ -6,54 +6,110 @@
 
 package nl.colorize.util;
 
-import java.util.concurrent.atomic.AtomicBoolean;
+import com.google.common.base.Preconditions;
+
+import java.time.Duration;
+import java.util.function.LongSupplier;
 import java.util.function.Supplier;
 
 /**
  * Wraps a computationally expensive operation so that the result is only
  * calculated on the first call, and the cached result is returned for
  * subsequent calls. Evaluation is lazy, the operation is not actually
- * performed until {@link #get()} is called for the first time.
+ * performed until {@link #get()} is called for the first time. Alternatively,
+ * {@link #expiring(Supplier, Duration)} can be used to recalculate the result
+ * once it has become older than a certain amount of time.
  * <p>
  * This class is intended for caching single values. Use {@link Cache} for
  * caching multiple values based on a cache key.
  * <p>
- * Instances of this class are <strong>not</strong> thread-safe. This class
- * is not intended for situations where the expensive operation is performed
- * by one thread, and the result is processed by a different thread. In those
- * situations, use {@link Subject} or a similar asynchronous mechanism.
+ * Instances of this class are thread-safe. The operation is performed at
+ * most once, even when multiple threads call {@link #get()} at the same
+ * time, and the result is safely published to all threads. Once the result
+ * is available, retrieving it does not require any locking.
  *
  * @param <T> The type of value that is returned by the operation.
  */
 public final class Memoized<T> implements Supplier<T> {
 
     private Supplier<T> operation;
-    private AtomicBoolean called;
-    private T result;
+    private long expiry;
+    private LongSupplier timeSource;
+    private volatile Result<T> result;
+    private final Object lock;
 
-    private Memoized(Supplier<T> operation) {
+    private Memoized(Supplier<T> operation, long expiry, LongSupplier timeSource) {
         this.operation = operation;
-        this.called = new AtomicBoolean(false);
+        this.expiry = expiry;
+        this.timeSource = timeSource;
+        this.result = null;
+        this.lock = new Object();
     }
 
     @Override
     public T get() {
-        if (!called.get()) {
-            result = operation.get();
-            called.set(true);
+        Result<T> current = result;
+
+        if (current == null || isExpired(current)) {
+            synchronized (lock) {
+                current = result;
+                if (current == null || isExpired(current)) {
+                    long time = expiry > 0L ? timeSource.getAsLong() : 0L;
+                    current = new Result<>(operation.get(), time);
+                    result = current;
+                }
+            }
         }
-        return result;
+
+        return current.value();
+    }
+
+    private boolean isExpired(Result<T> current) {
+        return expiry > 0L && timeSource.getAsLong() - current.time() >= expiry;
     }
 
     @Override
     public String toString() {
-        if (!called.get()) {
+        Result<T> current = result;
+        if (current == null) {
             return "<lazy>";
         }
-        return String.valueOf(result);
+        return String.valueOf(current.value());
     }
 
     public static <T> Memoized<T> compute(Supplier<T> operation) {
-        return new Memoized<>(operation);
+        return new Memoized<>(operation, 0L, System::currentTimeMillis);
+    }
+
+    /**
+     * Returns a {@link Memoized} that recalculates the result once the
+     * specified amount of time has passed since it was last calculated.
+     * This is intended for values that change infrequently, where using a
+     * slightly outdated value is acceptable. The recalculation is performed
+     * by the first thread that calls {@link #get()} after the result has
+     * expired, other threads will wait for the new result.
+     *
+     * @throws IllegalArgumentException if the duration is not positive.
+     */
+    public static <T> Memoized<T> expiring(Supplier<T> operation, Duration expiry) {
+        return expiring(operation, expiry, System::currentTimeMillis);
+    }
+
+    /**
+     * Returns a {@link Memoized} that recalculates the result once the
+     * specified amount of time has passed. Time is measured in milliseconds
+     * using the specified time source, which is mainly useful for testing.
+     */
+    static <T> Memoized<T> expiring(Supplier<T> operation, Duration expiry, LongSupplier timeSource) {
+        Preconditions.checkArgument(expiry.isPositive(), "Invalid expiry: " + expiry);
+        return new Memoized<>(operation, Math.max(expiry.toMillis(), 1L), timeSource);
+    }
+
+    /**
+     * Result of the operation, along with the time at which it was
+     * calculated. Both are stored in a single immutable object, so that
+     * they can be published to other threads using a single volatile write.
+     */
+    private record Result<T>(T value, long time) {
     }
 }
@@ -6,14 +6,44 @@
 
 package nl.colorize.util;
 
+import com.google.common.base.Equivalence;
+import com.google.common.base.Preconditions;
 import lombok.Getter;
 
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.function.Supplier;
 
 /**
  * Wraps an underlying mutable property, allowing subscribers to be notified
  * whenever the property's value changes.
  * <p>
+ * Signals can also be derived from other signals using
+ * {@link #computed(Supplier)}. Computed signals keep track of the signals
+ * they read while calculating their value, and are marked as outdated when
+ * one of those signals changes. The value is then recalculated the next
+ * time it is requested. Computed signals that have subscribers are instead
+ * recalculated immediately, in order of their position in the dependency
+ * graph, so that every computed signal is recalculated at most once per
+ * change and never observes a mix of old and new values. Computed signals
+ * without subscribers stop tracking their dependencies once they have been
+ * marked as outdated, so they are not kept alive by the signals they were
+ * derived from. Computed signals with subscribers can be detached
+ * explicitly using {@link #dispose()}.
+ * <p>
+ * By default, subscribers are notified every time the value is set, even
+ * if the new value is the same as the old value.
+ * {@link #withEquivalence(Equivalence)} can be used to only notify
+ * subscribers when the value actually changes. Signals that are updated
+ * frequently can use {@link #withCoalescing(Executor)} to combine multiple
+ * changes into a single notification.
+ * <p>
  * Instances of this class are <strong>not</strong> thread-safe. This class is
  * not intended for situations where different threads need to update the value
  * of the same underlying property. However, it is safe for multiple threads to
@@ -23,26 +53,225 @@ import java.util.function.Supplier;
  */
 public final class Signal<T> implements Supplier<T> {
 
-    private T value;
+    private volatile T value;
     @Getter Subject<T> changes;
+    private Equivalence<? super T> equivalence;
+    private Executor coalescer;
+    private AtomicBoolean notificationPending;
+    private Supplier<T> computation;
+    private boolean dirty;
+    private boolean computing;
+    private int height;
+    private Set<Signal<?>> dependencies;
+    private Set<Signal<?>> dependents;
+
+    private static final ThreadLocal<Tracker> TRACKER = ThreadLocal.withInitial(Tracker::new);
 
     private Signal() {
         this.changes = new Subject<>();
+        this.equivalence = null;
+        this.coalescer = null;
+        this.notificationPending = new AtomicBoolean(false);
+        this.computation = null;
+        this.dirty = false;
+        this.computing = false;
+        this.height = 0;
+        this.dependencies = new LinkedHashSet<>();
+        this.dependents = new LinkedHashSet<>();
+    }
+
+    /**
+     * Only notifies subscribers when the new value is different from the
+     * current value, according to the specified equivalence. Setting a value
+     * that is equivalent to the current value does nothing. For example,
+     * {@link Equivalence#equals()} compares values using their
+     * {@code equals} method. The equivalence is also used by computed
+     * signals, which otherwise use {@code equals} to determine if their
+     * value has changed.
+     *
+     * @return This signal, for method chaining.
+     */
+    public Signal<T> withEquivalence(Equivalence<? super T> equivalence) {
+        this.equivalence = equivalence;
+        return this;
+    }
+
+    /**
+     * Notifies subscribers using the specified executor, instead of
+     * immediately when the value is set. Only one notification is pending at
+     * any time, so values that are set before the executor has performed
+     * the notification are combined into a single notification for the most
+     * recent value. For example, {@code SwingUtilities::invokeLater} will
+     * notify subscribers once per iteration of the Swing event loop.
+     *
+     * @return This signal, for method chaining.
+     */
+    public Signal<T> withCoalescing(Executor coalescer) {
+        this.coalescer = coalescer;
+        return this;
     }
 
+    /**
+     * Changes this signal's value and notifies subscribers. Computed signals
+     * that depend on this signal are marked as outdated. When called from
+     * within {@link #batch(Runnable)}, computed signals are only updated
+     * once the batch has been completed.
+     *
+     * @throws IllegalStateException if this is a computed signal.
+     */
     public void set(T newValue) {
+        Preconditions.checkState(computation == null, "Cannot change computed signal");
+
+        if (equivalence != null && equivalence.equivalent(value, newValue)) {
+            return;
+        }
+
         value = newValue;
-        changes.next(newValue);
+
+        // Dependents are marked as outdated before notifying subscribers,
+        // so that subscribers reading a computed signal get its new value.
+        Tracker tracker = TRACKER.get();
+        markDependentsDirty(tracker.pending);
+        notifySubscribers();
+
+        if (tracker.batchDepth == 0) {
+            tracker.propagate();
+        }
+    }
+
+    private void notifySubscribers() {
+        if (coalescer == null) {
+            changes.next(value);
+        } else if (notificationPending.compareAndSet(false, true)) {
+            coalescer.execute(() -> {
+                notificationPending.set(false);
+                changes.next(value);
+            });
+        }
+    }
+
+    /**
+     * Marks all computed signals that depend on this signal as outdated.
+     * Outdated computed signals without subscribers are detached from their
+     * dependencies, since they will track their dependencies again when
+     * they are recalculated. This means computed signals that are no longer
+     * used are not kept alive by the signals they depend on.
+     */
+    private void markDependentsDirty(Set<Signal<?>> marked) {
+        if (dependents.isEmpty()) {
+            return;
+        }
+
+        for (Signal<?> dependent : new ArrayList<>(dependents)) {
+            if (marked.add(dependent) || !dependent.dirty) {
+                dependent.dirty = true;
+                dependent.markDependentsDirty(marked);
+
+                if (!dependent.changes.hasSubscribers()) {
+                    dependent.detach();
+                }
+            }
+        }
+    }
+
+    private void detach() {
+        for (Signal<?> dependency : dependencies) {
+            dependency.dependents.remove(this);
+        }
+        dependencies.clear();
     }
 
     @Override
     public T get() {
+        Tracker tracker = TRACKER.get();
+        if (tracker.computing != null) {
+            tracker.computing.dependencies.add(this);
+            dependents.add(tracker.computing);
+        }
+
+        if (dirty) {
+            recompute(tracker);
+        }
+
         return value;
     }
 
+    /**
+     * Recalculates the value of a computed signal. The signals it depends
+     * on are collected again during the calculation, since dependencies can
+     * change depending on the values of other signals.
+     */
+    private void recompute(Tracker tracker) {
+        Preconditions.checkState(!computing, "Circular dependency between computed signals");
+
+        detach();
+
+        Signal<?> previous = tracker.computing;
+        tracker.computing = this;
+        computing = true;
+
+        try {
+            value = computation.get();
+            dirty = false;
+        } finally {
+            computing = false;
+            tracker.computing = previous;
+        }
+
+        height = 1;
+        for (Signal<?> dependency : dependencies) {
+            height = Math.max(height, dependency.height + 1);
+        }
+    }
+
+    /**
+     * Recalculates a computed signal that has subscribers, and notifies
+     * those subscribers if the value has changed.
+     */
+    private void refresh() {
+        if (dirty && changes.hasSubscribers()) {
+            T oldValue = value;
+            recompute(TRACKER.get());
+            if (!isEquivalent(oldValue, value)) {
+                notifySubscribers();
+            }
+        }
+    }
+
+    /**
+     * Stops this computed signal from tracking the signals it depends on,
+     * so that it is no longer updated when those signals change. This
+     * allows the computed signal to be garbage collected even if the
+     * signals it depends on are still in use. The computed signal's value
+     * is recalculated, and its dependencies tracked again, if it is
+     * requested afterwards. This method does nothing for signals that are
+     * not computed.
+     */
+    public void dispose() {
+        if (computation != null) {
+            detach();
+            dirty = true;
+        }
+    }
+
+    /**
+     * Returns the number of computed signals that currently depend on this
+     * signal. This is mainly useful for testing.
+     */
+    int getDependentCount() {
+        return dependents.size();
+    }
+
+    private boolean isEquivalent(T a, T b) {
+        if (equivalence == null) {
+            return Objects.equals(a, b);
+        }
+        return equivalence.equivalent(a, b);
+    }
+
     @Override
     public String toString() {
-        return String.valueOf(value);
+        return String.valueOf(get());
     }
 
     /**
@@ -64,4 +293,81 @@ public final class Signal<T> implements Supplier<T> {
         signal.set(initialValue);
         return signal;
     }
+
+    /**
+     * Creates a {@link Signal} whose value is derived from other signals.
+     * Any signals that are read by the computation, by calling their
+     * {@link #get()} method, are automatically tracked as dependencies.
+     * The computation is performed lazily, the first time the value is
+     * requested, and again when requested after one of its dependencies has
+     * changed. Computed signals cannot be changed using {@link #set(Object)}.
+     * <p>
+     * Subscribers to the computed signal's changes are notified when the
+     * value is recalculated and differs from the previous value. Since
+     * dependencies are only known after the value has been calculated,
+     * subscribers are not notified of changes until the value has been
+     * requested at least once.
+     */
+    public static <T> Signal<T> computed(Supplier<T> computation) {
+        Signal<T> signal = new Signal<>();
+        signal.computation = computation;
+        signal.dirty = true;
+        return signal;
+    }
+
+    /**
+     * Performs the specified operation as a single transaction. Signals that
+     * are changed during the operation notify their own subscribers
+     * immediately, but computed signals that depend on them are only updated
+     * once the operation has completed. This means a computed signal is
+     * recalculated once, even if several of its dependencies were changed.
+     * Transactions can be nested, computed signals are updated when the
+     * outermost transaction completes.
+     */
+    public static void batch(Runnable operation) {
+        Tracker tracker = TRACKER.get();
+        tracker.batchDepth++;
+
+        try {
+            operation.run();
+        } finally {
+            tracker.batchDepth--;
+            if (tracker.batchDepth == 0) {
+                tracker.propagate();
+            }
+        }
+    }
+
+    /**
+     * Keeps track of the computed signal that is currently being calculated,
+     * and of the computed signals that have been marked as outdated but have
+     * not yet been updated. Computed signals are tracked per thread, since
+     * a computation is always performed within a single thread.
+     */
+    private static class Tracker {
+
+        private Signal<?> computing;
+        private int batchDepth;
+        private Set<Signal<?>> pending = new LinkedHashSet<>();
+
+        /**
+         * Updates all outdated computed signals that have subscribers. Signals
+         * are updated in order of their height in the dependency graph, so
+         * that a computed signal is always updated after the computed
+         * signals it depends on.
+         */
+        public void propagate() {
+            if (pending.isEmpty()) {
+                return;
+            }
+
+            List<Signal<?>> outdated = new ArrayList<>(pending);
+            outdated.sort(Comparator.comparingInt(signal -> signal.height));
+            pending.clear();
+
+            for (Signal<?> signal : outdated) {
+                signal.refresh();
+            }
+        }
+    }
 }
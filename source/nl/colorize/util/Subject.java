@@ -6,16 +6,34 @@
 
 package nl.colorize.util;
 
+import com.google.common.base.Preconditions;
+import com.google.common.math.LongMath;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import lombok.AllArgsConstructor;
 
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
 import java.util.List;
+import java.util.Queue;
 import java.util.UUID;
 import java.util.concurrent.Callable;
-import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.Flow;
 import java.util.concurrent.Flow.Publisher;
 import java.util.concurrent.Flow.Subscriber;
 import java.util.concurrent.Flow.Subscription;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.function.Consumer;
 import java.util.function.Function;
 import java.util.function.Predicate;
@@ -32,21 +50,166 @@ import java.util.stream.Stream;
  * {@link Subject} instances are thread-safe and can be accessed from
  * different threads. This facilitates workflows where publishers and
  * subscribers operate on different threads.
+ * <p>
+ * Subscribers can use {@link Subscription#request(long)} to indicate how
+ * many events they are able to process. Subscribers that never request
+ * events will receive all events immediately as they are published, without
+ * any form of backpressure. Once a subscriber has requested events, events
+ * exceeding the outstanding demand are buffered until the subscriber
+ * requests more events. The buffer size and the behavior when the buffer
+ * is full can be configured using
+ * {@link #withBackpressure(int, OverflowStrategy)}.
+ * <p>
+ * By default, subscribers are notified in the thread that publishes the
+ * event. This means a slow subscriber will also delay the publisher and
+ * all other subscribers. Subjects created using {@link #async(Executor)}
+ * instead give every subscriber its own queue, which is processed using
+ * the executor. Events are still delivered to each subscriber in the order
+ * in which they were published, but subscribers no longer block the
+ * publisher or each other.
+ * <p>
+ * Events and errors that are published while the subject does not have any
+ * subscribers are retained, and replayed to subscribers once they register.
+ * By default all such events are retained, {@link #withReplay(ReplayPolicy)}
+ * can be used to limit the number of retained events, or the amount of time
+ * for which they are retained.
+ * <p>
+ * Time-based operators, such as {@link #buffer(Duration)} and
+ * {@link #debounce(Duration)}, publish events from a shared scheduler
+ * thread. Periodic tasks only run while the resulting subject has
+ * subscribers. These operators are not supported on TeaVM.
  *
  * @param <T> The type of event that can be subscribed to.
  */
 public final class Subject<T> implements Publisher<T> {
 
-    private List<Subscriber<? super T>> subscribers;
-    private List<Object> undelivered;
+    private volatile ManagedSubscription[] subscribers;
+    private ReplayBuffer<Notification<T>> undelivered;
     private boolean completed;
+    private int bufferSize;
+    private OverflowStrategy overflowStrategy;
+    private Executor executor;
+    private volatile Future<?> task;
+    private Subject<?> upstream;
+    private Function<Object, Object> stage;
+    private Subscription stageSubscription;
+    private List<FusedChild> fusedChildren;
+    private volatile boolean fused;
+    private PeriodicTask periodic;
 
+    private static final int DEFAULT_BUFFER_SIZE = 256;
+    private static final Object FILTERED = new Object();
+    private static final Subject<?>.ManagedSubscription[] NO_SUBSCRIBERS =
+        new Subject<?>.ManagedSubscription[0];
     private static final Logger LOGGER = LogHelper.getLogger(Subject.class);
 
     public Subject() {
-        this.subscribers = new CopyOnWriteArrayList<>();
-        this.undelivered = new CopyOnWriteArrayList<>();
+        this.subscribers = getEmptySubscriberArray();
+        this.undelivered = new ReplayBuffer<>(ReplayPolicy.all());
         this.completed = false;
+        this.bufferSize = DEFAULT_BUFFER_SIZE;
+        this.overflowStrategy = OverflowStrategy.ERROR;
+        this.executor = null;
+        this.task = null;
+        this.upstream = null;
+        this.stage = null;
+        this.stageSubscription = null;
+        this.fusedChildren = null;
+        this.fused = false;
+        this.periodic = null;
+    }
+
+    @SuppressWarnings("unchecked")
+    private Subject<T>.ManagedSubscription[] getEmptySubscriberArray() {
+        return (Subject<T>.ManagedSubscription[]) NO_SUBSCRIBERS;
+    }
+
+    /**
+     * Subscribers are stored in an array that is replaced whenever a
+     * subscriber is added or removed. Publishing events, which is far more
+     * common than changing subscribers, can therefore iterate over the
+     * array without locking or allocating.
+     */
+    private synchronized void addSubscriber(ManagedSubscription subscription) {
+        ManagedSubscription[] updated = Arrays.copyOf(subscribers, subscribers.length + 1);
+        updated[subscribers.length] = subscription;
+        subscribers = updated;
+
+        if (periodic != null && updated.length == 1) {
+            periodic.start();
+        }
+    }
+
+    private synchronized void removeSubscriber(ManagedSubscription subscription) {
+        int index = Arrays.asList(subscribers).indexOf(subscription);
+        if (index != -1) {
+            ManagedSubscription[] updated = Arrays.copyOf(subscribers, subscribers.length - 1);
+            System.arraycopy(subscribers, index + 1, updated, index, updated.length - index);
+            subscribers = updated;
+
+            if (periodic != null && updated.length == 0) {
+                periodic.stop();
+            }
+        }
+    }
+
+    /**
+     * Changes the maximum number of events that will be buffered for each
+     * subscriber that has requested events using
+     * {@link Subscription#request(long)}, and the strategy that is used
+     * when events are published while this buffer is full. The default is
+     * a buffer of 256 events, with {@link OverflowStrategy#ERROR}. This
+     * method only affects subscribers that are registered afterwards.
+     *
+     * @return This subject, for method chaining.
+     * @throws IllegalArgumentException if the buffer size is not positive.
+     */
+    public Subject<T> withBackpressure(int bufferSize, OverflowStrategy overflowStrategy) {
+        Preconditions.checkArgument(bufferSize > 0, "Invalid buffer size: " + bufferSize);
+
+        this.bufferSize = bufferSize;
+        this.overflowStrategy = overflowStrategy;
+        return this;
+    }
+
+    /**
+     * Changes which events and errors are retained while this subject does
+     * not have any subscribers, to be replayed once subscribers register.
+     * By default, all events and errors are retained. This method is
+     * intended to be called directly after creating the subject, any events
+     * that were already retained are discarded.
+     *
+     * @return This subject, for method chaining.
+     */
+    public Subject<T> withReplay(ReplayPolicy replayPolicy) {
+        this.undelivered = new ReplayBuffer<>(replayPolicy);
+        return this;
+    }
+
+    /**
+     * Returns true if this subject currently has at least one subscriber.
+     * Used by {@link Signal} to decide whether derived values need to be
+     * recalculated immediately, or can wait until they are requested.
+     */
+    boolean hasSubscribers() {
+        return subscribers.length > 0;
+    }
+
+    /**
+     * Returns the number of subscribers that are currently registered. This
+     * is mainly useful for testing.
+     */
+    int getSubscriberCount() {
+        return subscribers.length;
+    }
+
+    /**
+     * Returns the number of tasks that are currently waiting in the shared
+     * scheduler used by time-based operators. This is mainly useful for
+     * testing.
+     */
+    static int getScheduledTaskCount() {
+        return Scheduler.INSTANCE.getQueue().size();
     }
 
     /**
@@ -59,13 +222,13 @@ public final class Subject<T> implements Publisher<T> {
             return;
         }
 
-        if (subscribers.isEmpty()) {
-            undelivered.add(event);
+        if (subscribers.length == 0) {
+            undelivered.add(new Notification<>(event, null));
             return;
         }
 
-        for (Subscriber<? super T> subscriber : subscribers) {
-            subscriber.onNext(event);
+        for (ManagedSubscription subscription : subscribers) {
+            subscription.offer(event, null);
         }
     }
 
@@ -81,13 +244,13 @@ public final class Subject<T> implements Publisher<T> {
             return;
         }
 
-        if (subscribers.isEmpty()) {
-            undelivered.add(error);
+        if (subscribers.length == 0) {
+            undelivered.add(new Notification<>(null, error));
             return;
         }
 
-        for (Subscriber<? super T> subscriber : subscribers) {
-            subscriber.onError(error);
+        for (ManagedSubscription subscription : subscribers) {
+            subscription.offer(null, error);
         }
     }
 
@@ -123,40 +286,24 @@ public final class Subject<T> implements Publisher<T> {
     }
 
     private Subscription registerSubscription(Subscriber<? super T> subscriber) {
-        subscribers.add(subscriber);
-        Subscription subscription = makeSubscription(subscriber);
+        ManagedSubscription subscription = new ManagedSubscription(subscriber);
+        addSubscriber(subscription);
         subscriber.onSubscribe(subscription);
         if (!undelivered.isEmpty()) {
-            sendUndelivered(subscriber);
+            sendUndelivered(subscription);
+        }
+        if (fused) {
+            unfuse();
         }
         return subscription;
     }
 
-    @SuppressWarnings("unchecked")
-    private void sendUndelivered(Subscriber<? super T> subscriber) {
-        for (Object undeliveredEvent : undelivered) {
-            if (undeliveredEvent instanceof Exception error) {
-                subscriber.onError(error);
-            } else {
-                subscriber.onNext((T) undeliveredEvent);
-            }
+    private void sendUndelivered(ManagedSubscription subscription) {
+        for (Notification<T> notification : undelivered.snapshot()) {
+            subscription.offer(notification.event(), notification.error());
         }
     }
 
-    private Subscription makeSubscription(Subscriber<? super T> subscriber) {
-        return new Subscription() {
-            @Override
-            public void request(long n) {
-                throw new UnsupportedOperationException();
-            }
-
-            @Override
-            public void cancel() {
-                subscribers.remove(subscriber);
-            }
-        };
-    }
-
     /**
      * Registers a subscriber that will invoke the specified callback functions
      * on events, errors, and completion, respectively. The new subscriber will
@@ -231,8 +378,8 @@ public final class Subject<T> implements Publisher<T> {
         if (!completed) {
             completed = true;
 
-            for (Subscriber<? super T> subscriber : subscribers) {
-                subscriber.onComplete();
+            for (ManagedSubscription subscription : subscribers) {
+                subscription.complete();
             }
         }
     }
@@ -243,21 +390,9 @@ public final class Subject<T> implements Publisher<T> {
      * as the equivalent of {@link Stream#map(Function)} for asynchronous
      * events.
      */
+    @SuppressWarnings("unchecked")
     public <S> Subject<S> map(Function<T, S> mapper) {
-        Subject<S> mapped = new Subject<>();
-
-        Consumer<T> onEvent = event -> {
-            try {
-                S mappedEvent = mapper.apply(event);
-                mapped.next(mappedEvent);
-            } catch (Exception e) {
-                mapped.nextError(e);
-            }
-        };
-
-        subscribe(onEvent, mapped::nextError);
-
-        return mapped;
+        return fuse(event -> mapper.apply((T) event));
     }
 
     /**
@@ -287,18 +422,361 @@ public final class Subject<T> implements Publisher<T> {
      * though only events that match the specified predicate. Intended as the
      * equivalent of {@link Stream#filter(Predicate)} for asynchronous events.
      */
+    @SuppressWarnings("unchecked")
     public Subject<T> filter(Predicate<T> predicate) {
-        Subject<T> filtered = new Subject<>();
+        return fuse(event -> predicate.test((T) event) ? event : FILTERED);
+    }
 
-        Consumer<T> onEvent = event -> {
-            if (predicate.test(event)) {
-                filtered.next(event);
+    /**
+     * Creates a {@link Subject} that applies the specified stage to every
+     * event, and then publishes the result to its own subscribers. Stages
+     * return {@link #FILTERED} for events that should not be published.
+     * <p>
+     * If this subject was itself created by {@link #map(Function)} or
+     * {@link #filter(Predicate)}, and does not have any subscribers or
+     * retained events, both stages are fused into a single subscriber to
+     * the original subject. This avoids publishing every event through each
+     * intermediate subject in a chain of operators. The intermediate subject
+     * is then unsubscribed from the original subject, so the original
+     * subject only has a single subscriber for the entire chain.
+     * <p>
+     * Fusion is undone once the intermediate subject is used by more than
+     * one chain, or gets its own subscribers. The intermediate subject then
+     * subscribes to the original subject again, and the fused subjects are
+     * moved back to the intermediate subject. This ensures every stage is
+     * still applied once per event, regardless of how many subjects use its
+     * results. A fused intermediate subject does not retain events or errors
+     * while it does not have any subscribers.
+     */
+    private <S> Subject<S> fuse(Function<Object, Object> nextStage) {
+        Subject<S> result = new Subject<>();
+        Subject<?> source = this;
+        Function<Object, Object> fusedStage = nextStage;
+        Subscription superseded = null;
+
+        if (fused) {
+            unfuse();
+        }
+
+        synchronized (this) {
+            if (upstream != null && subscribers.length == 0 && undelivered.isEmpty() && !completed) {
+                source = upstream;
+                fusedStage = compose(stage, nextStage);
+                fused = true;
+                fusedChildren = new ArrayList<>();
+                fusedChildren.add(new FusedChild(result, nextStage));
+                superseded = stageSubscription;
+                stageSubscription = null;
+            }
+        }
+
+        result.upstream = source;
+        result.stage = fusedStage;
+        source.subscribe(new StageSubscriber<>(result, fusedStage));
+
+        // The superseded subscription is only cancelled after subscribing
+        // the fused stage, since cancelling the last subscription would
+        // otherwise interrupt subjects created by runAsync().
+        if (superseded != null) {
+            superseded.cancel();
+        }
+
+        return result;
+    }
+
+    private static Function<Object, Object> compose(Function<Object, Object> first,
+                                                    Function<Object, Object> second) {
+        return event -> {
+            Object intermediate = first.apply(event);
+            return intermediate == FILTERED ? FILTERED : second.apply(intermediate);
+        };
+    }
+
+    /**
+     * Undoes fusion for this intermediate subject, by subscribing it to the
+     * original subject again and moving all subjects that were fused through
+     * it back to this subject. See {@link #fuse(Function)}.
+     */
+    private void unfuse() {
+        List<FusedChild> children;
+
+        synchronized (this) {
+            if (stageSubscription == null) {
+                upstream.subscribe(new StageSubscriber<>(this, stage));
+            }
+
+            children = fusedChildren;
+            fusedChildren = null;
+        }
+
+        if (children != null) {
+            for (FusedChild child : children) {
+                child.subject().rebase(this, child.stage());
+            }
+        }
+    }
+
+    /**
+     * Changes the subject this subject receives events from, and the stage
+     * it applies to those events. If this subject is currently subscribed,
+     * it is moved to the new upstream subject. Subjects that were fused
+     * through this subject are updated accordingly.
+     */
+    private void rebase(Subject<?> newUpstream, Function<Object, Object> newStage) {
+        Subscription previous;
+        List<FusedChild> children;
+
+        synchronized (this) {
+            upstream = newUpstream;
+            stage = newStage;
+            previous = stageSubscription;
+            children = fusedChildren == null ? List.of() : List.copyOf(fusedChildren);
+
+            if (previous != null) {
+                stageSubscription = null;
+                newUpstream.subscribe(new StageSubscriber<>(this, newStage));
+            }
+        }
+
+        if (previous != null) {
+            previous.cancel();
+        }
+
+        for (FusedChild child : children) {
+            child.subject().rebase(newUpstream, compose(newStage, child.stage()));
+        }
+    }
+
+    /**
+     * Returns a {@link Subject} that collects events into lists of the
+     * specified size, and then publishes those lists to its own subscribers.
+     * When this subject is completed, any remaining events are published as
+     * a final, smaller, list.
+     *
+     * @throws IllegalArgumentException if the count is not positive.
+     */
+    public Subject<List<T>> buffer(int count) {
+        Preconditions.checkArgument(count > 0, "Invalid count: " + count);
+
+        Subject<List<T>> buffered = new Subject<>();
+        Batch<T> batch = new Batch<>();
+
+        subscribe(
+            event -> publishBatch(buffered, batch.add(event, count)),
+            buffered::nextError,
+            () -> {
+                publishBatch(buffered, batch.drain());
+                buffered.complete();
+            }
+        );
+
+        return buffered;
+    }
+
+    /**
+     * Returns a {@link Subject} that collects events for the specified
+     * interval, and then publishes all events received during that interval
+     * as a list. Intervals in which no events were received do not lead to
+     * an empty list being published. When this subject is completed, any
+     * remaining events are published as a final list. Events received while
+     * the returned subject does not have any subscribers are discarded.
+     *
+     * @throws IllegalArgumentException if the interval is not positive.
+     */
+    public Subject<List<T>> buffer(Duration interval) {
+        Subject<List<T>> buffered = new Subject<>();
+        Batch<T> batch = new Batch<>();
+        buffered.schedulePeriodic(() -> publishBatch(buffered, batch.drain()), interval);
+
+        subscribe(
+            event -> {
+                if (buffered.hasSubscribers()) {
+                    batch.add(event, Integer.MAX_VALUE);
+                }
+            },
+            buffered::nextError,
+            () -> {
+                buffered.cancelPeriodic();
+                publishBatch(buffered, batch.drain());
+                buffered.complete();
+            }
+        );
+
+        return buffered;
+    }
+
+    private static <T> void publishBatch(Subject<List<T>> subject, List<T> batch) {
+        if (batch != null && !batch.isEmpty()) {
+            subject.next(batch);
+        }
+    }
+
+    /**
+     * Returns a {@link Subject} that splits events into windows of the
+     * specified size. Every window is published as a separate subject, that
+     * forwards events as they are received and is completed once the window
+     * is full.
+     *
+     * @throws IllegalArgumentException if the count is not positive.
+     */
+    public Subject<Subject<T>> window(int count) {
+        Preconditions.checkArgument(count > 0, "Invalid count: " + count);
+
+        Subject<Subject<T>> windows = new Subject<>();
+        Window<T> window = new Window<>(windows);
+
+        subscribe(
+            event -> window.add(event, count),
+            windows::nextError,
+            () -> {
+                window.close();
+                windows.complete();
+            }
+        );
+
+        return windows;
+    }
+
+    /**
+     * Returns a {@link Subject} that splits events into windows of the
+     * specified duration. Every window is published as a separate subject,
+     * that forwards events as they are received and is completed at the end
+     * of the interval. New windows are only published when an event is
+     * received, so intervals without events do not lead to empty windows.
+     * Events received while the returned subject does not have any
+     * subscribers are discarded.
+     *
+     * @throws IllegalArgumentException if the interval is not positive.
+     */
+    public Subject<Subject<T>> window(Duration interval) {
+        Subject<Subject<T>> windows = new Subject<>();
+        Window<T> window = new Window<>(windows);
+        windows.schedulePeriodic(window::close, interval);
+
+        subscribe(
+            event -> {
+                if (windows.hasSubscribers()) {
+                    window.add(event, Integer.MAX_VALUE);
+                }
+            },
+            windows::nextError,
+            () -> {
+                windows.cancelPeriodic();
+                window.close();
+                windows.complete();
+            }
+        );
+
+        return windows;
+    }
+
+    /**
+     * Returns a {@link Subject} that publishes the most recent event at the
+     * specified interval, discarding all other events. Nothing is published
+     * for intervals in which no events were received. When this subject is
+     * completed, the most recent event is published if it had not been
+     * published yet.
+     *
+     * @throws IllegalArgumentException if the interval is not positive.
+     */
+    public Subject<T> sample(Duration interval) {
+        Subject<T> sampled = new Subject<>();
+        AtomicReference<Notification<T>> latest = new AtomicReference<>();
+        Runnable publishLatest = () -> {
+            Notification<T> notification = latest.getAndSet(null);
+            if (notification != null) {
+                sampled.next(notification.event());
             }
         };
+        sampled.schedulePeriodic(publishLatest, interval);
+
+        subscribe(
+            event -> latest.set(new Notification<>(event, null)),
+            sampled::nextError,
+            () -> {
+                sampled.cancelPeriodic();
+                publishLatest.run();
+                sampled.complete();
+            }
+        );
+
+        return sampled;
+    }
+
+    /**
+     * Returns a {@link Subject} that only publishes an event once no other
+     * events have been received for the specified amount of time. This is
+     * typically used for events that arrive in bursts, where only the final
+     * event of each burst is relevant. When this subject is completed, the
+     * pending event is published immediately.
+     *
+     * @throws IllegalArgumentException if the delay is not positive.
+     */
+    public Subject<T> debounce(Duration delay) {
+        Preconditions.checkArgument(delay.isPositive(), "Invalid delay: " + delay);
+
+        Subject<T> debounced = new Subject<>();
+        Debouncer<T> debouncer = new Debouncer<>(debounced, delay.toNanos());
+        subscribe(debouncer::next, debounced::nextError, debouncer::complete);
+        return debounced;
+    }
+
+    /**
+     * Performs a task at a fixed interval using the shared scheduler, but
+     * only while this subject has subscribers. The task is started when the
+     * first subscriber registers, and stopped once the last subscriber has
+     * cancelled its subscription. This prevents time-based operators from
+     * keeping scheduled tasks alive when nobody is interested in their
+     * results.
+     *
+     * @throws IllegalArgumentException if the interval is not positive.
+     */
+    private synchronized void schedulePeriodic(Runnable task, Duration interval) {
+        Preconditions.checkArgument(interval.isPositive(), "Invalid interval: " + interval);
+
+        periodic = new PeriodicTask(task, interval.toNanos());
+        if (subscribers.length > 0) {
+            periodic.start();
+        }
+    }
+
+    private synchronized void cancelPeriodic() {
+        if (periodic != null) {
+            periodic.stop();
+            periodic = null;
+        }
+    }
 
-        subscribe(onEvent, filtered::nextError);
+    /**
+     * Returns a {@link Subject} that forwards events, errors, and completion
+     * to its own subscribers, which are notified using the specified
+     * executor. See {@link #async(Executor)} for details.
+     */
+    public Subject<T> observeOn(Executor executor) {
+        Subject<T> observed = async(executor);
+        subscribe(observed::next, observed::nextError, observed::complete);
+        return observed;
+    }
 
-        return filtered;
+    /**
+     * Creates a {@link Subject} that notifies its subscribers using the
+     * specified executor, rather than in the thread that publishes the
+     * event. Every subscriber has its own queue, so events are delivered to
+     * each subscriber in order, and subscribers are never notified from
+     * multiple threads at the same time.
+     */
+    public static <T> Subject<T> async(Executor executor) {
+        Subject<T> subject = new Subject<>();
+        subject.executor = executor;
+        return subject;
+    }
+
+    /**
+     * Creates a {@link Subject} that notifies its subscribers using virtual
+     * threads. See {@link #async(Executor)} for details.
+     */
+    public static <T> Subject<T> async() {
+        return async(VirtualThreadExecutor.INSTANCE);
     }
 
     /**
@@ -337,19 +815,755 @@ public final class Subject<T> implements Publisher<T> {
     }
 
     /**
-     * Performs the specified operation in a new thread, returns a
-     * {@link Subject} that can be used to subscribe to its results.
+     * Performs the specified operation in a virtual thread, returns a
+     * {@link Subject} that can be used to subscribe to its results. Virtual
+     * threads are cheap to create, so this method can be used for large
+     * numbers of concurrent operations. The running operation is interrupted
+     * once all subscribers have cancelled their subscription.
+     * <p>
+     * On platforms that do not support virtual threads, such as TeaVM, the
+     * operation is performed in a new platform thread instead.
      */
     public static <T> Subject<T> runAsync(Callable<T> operation) {
-        Subject<T> subject = new Subject<>();
+        if (Platform.isTeaVM()) {
+            Subject<T> subject = new Subject<>();
+            Thread backgroundThread = new Thread(() -> subject.next(operation),
+                "Subject-" + UUID.randomUUID());
+            backgroundThread.start();
+            return subject;
+        }
 
-        Thread backgroundThread = new Thread(() -> subject.next(operation),
-            "Subject-" + UUID.randomUUID());
-        backgroundThread.start();
+        return runAsync(operation, VirtualThreadExecutor.INSTANCE);
+    }
 
+    /**
+     * Performs the specified operation using the provided executor service,
+     * returns a {@link Subject} that can be used to subscribe to its results.
+     * The running operation is interrupted once all subscribers have
+     * cancelled their subscription.
+     */
+    public static <T> Subject<T> runAsync(Callable<T> operation, ExecutorService executor) {
+        Subject<T> subject = new Subject<>();
+        subject.task = executor.submit(() -> subject.next(operation));
         return subject;
     }
 
+    /**
+     * Strategy that is used when an event is published to a subscriber that
+     * has requested events, while that subscriber's buffer is already full.
+     */
+    public enum OverflowStrategy {
+        /**
+         * Discards the oldest buffered event to make room for the new event.
+         */
+        DROP_OLDEST,
+
+        /**
+         * Discards the new event, keeping the events that are already
+         * buffered.
+         */
+        DROP_NEWEST,
+
+        /**
+         * Cancels the subscription and notifies the subscriber with an
+         * {@link IllegalStateException}.
+         */
+        ERROR,
+
+        /**
+         * Blocks the thread that is publishing the event until the subscriber
+         * has requested more events. This strategy should only be used when
+         * the publisher and subscriber operate on different threads.
+         */
+        BLOCK
+    }
+
+    /**
+     * Subscription for a single subscriber, which keeps track of how many
+     * events the subscriber has requested. Subscribers that have never called
+     * {@link #request(long)} receive events directly. Otherwise, events are
+     * added to a buffer and delivered while there is outstanding demand.
+     * Errors are buffered to preserve ordering, but do not count towards the
+     * demand.
+     * <p>
+     * Only one thread at a time delivers buffered events. If events are
+     * published or requested while another thread is already delivering,
+     * that thread will also deliver the new events. This also prevents
+     * recursion when subscribers request more events from within
+     * {@link Subscriber#onNext(Object)}.
+     * <p>
+     * For asynchronous subjects, notifications are not performed directly,
+     * but added to a queue that is processed by the executor. At most one
+     * task at a time processes the queue, which ensures notifications are
+     * performed in order.
+     */
+    private class ManagedSubscription implements Subscription {
+
+        private Subscriber<? super T> subscriber;
+        private Deque<Notification<T>> buffer;
+        private boolean tracking;
+        private long demand;
+        private boolean completePending;
+        private Thread emitter;
+        private volatile boolean cancelled;
+        private Queue<Runnable> pending;
+        private AtomicBoolean scheduled;
+
+        public ManagedSubscription(Subscriber<? super T> subscriber) {
+            this.subscriber = subscriber;
+            this.buffer = new ArrayDeque<>();
+            this.tracking = false;
+            this.demand = 0L;
+            this.completePending = false;
+            this.emitter = null;
+            this.cancelled = false;
+            this.pending = executor == null ? null : new ConcurrentLinkedQueue<>();
+            this.scheduled = new AtomicBoolean(false);
+        }
+
+        @Override
+        public void request(long n) {
+            if (n <= 0L) {
+                cancel();
+                subscriber.onError(new IllegalArgumentException("Invalid number of events: " + n));
+                return;
+            }
+
+            synchronized (this) {
+                tracking = true;
+                demand = LongMath.saturatedAdd(demand, n);
+            }
+
+            drain();
+        }
+
+        @Override
+        public void cancel() {
+            synchronized (this) {
+                cancelled = true;
+                buffer.clear();
+                notifyAll();
+            }
+
+            removeSubscriber(this);
+
+            Future<?> runningTask = task;
+            if (runningTask != null && subscribers.length == 0) {
+                runningTask.cancel(true);
+            }
+        }
+
+        public void offer(T event, Throwable error) {
+            boolean direct;
+            boolean overflow = false;
+
+            synchronized (this) {
+                direct = !tracking;
+                if (tracking) {
+                    if (cancelled) {
+                        return;
+                    }
+
+                    overflow = !enqueue(new Notification<>(event, error)) &&
+                        overflowStrategy == OverflowStrategy.ERROR;
+                }
+            }
+
+            if (direct) {
+                deliver(event, error);
+            } else if (overflow) {
+                cancel();
+                subscriber.onError(new IllegalStateException("Subscriber buffer overflow"));
+            } else {
+                drain();
+            }
+        }
+
+        /**
+         * Adds a notification to the buffer, applying the overflow strategy
+         * if the buffer is full. Returns false if the notification could not
+         * be added. Must be called while holding the lock.
+         */
+        private boolean enqueue(Notification<T> notification) {
+            if (buffer.size() >= bufferSize && notification.error() == null) {
+                switch (overflowStrategy) {
+                    case DROP_OLDEST -> buffer.poll();
+                    case DROP_NEWEST, ERROR -> {
+                        return false;
+                    }
+                    case BLOCK -> {
+                        if (!awaitCapacity()) {
+                            return false;
+                        }
+                    }
+                }
+            }
+
+            buffer.add(notification);
+            return true;
+        }
+
+        /**
+         * Blocks the current thread until the buffer has room for another
+         * event. Returns false if the subscription was cancelled or the
+         * thread was interrupted while waiting. The thread that is currently
+         * delivering events is never blocked, since that would mean it ends
+         * up waiting for itself.
+         */
+        private boolean awaitCapacity() {
+            try {
+                while (buffer.size() >= bufferSize && !cancelled && emitter != Thread.currentThread()) {
+                    wait();
+                }
+                return !cancelled;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+
+        public void complete() {
+            boolean direct;
+
+            synchronized (this) {
+                if (cancelled) {
+                    return;
+                }
+
+                direct = !tracking;
+                completePending = tracking;
+            }
+
+            if (direct) {
+                dispatch(subscriber::onComplete);
+            } else {
+                drain();
+            }
+        }
+
+        private void drain() {
+            synchronized (this) {
+                if (emitter != null) {
+                    return;
+                }
+                emitter = Thread.currentThread();
+            }
+
+            while (true) {
+                Notification<T> next;
+                boolean complete = false;
+
+                synchronized (this) {
+                    next = poll();
+                    if (next == null) {
+                        complete = completePending && buffer.isEmpty() && !cancelled;
+                        completePending = completePending && !complete;
+                        emitter = null;
+                        notifyAll();
+                    }
+                }
+
+                if (next == null) {
+                    if (complete) {
+                        dispatch(subscriber::onComplete);
+                    }
+                    return;
+                }
+
+                deliver(next.event(), next.error());
+            }
+        }
+
+        /**
+         * Removes and returns the next notification that can be delivered,
+         * or returns {@code null} if the buffer is empty or the subscriber
+         * has no outstanding demand. Must be called while holding the lock.
+         */
+        private Notification<T> poll() {
+            Notification<T> next = buffer.peek();
+            if (cancelled || next == null) {
+                return null;
+            }
+
+            if (next.error() == null) {
+                if (demand == 0L) {
+                    return null;
+                }
+
+                if (demand != Long.MAX_VALUE) {
+                    demand--;
+                }
+            }
+
+            notifyAll();
+            return buffer.poll();
+        }
+
+        private void deliver(T event, Throwable error) {
+            if (error != null) {
+                dispatch(() -> subscriber.onError(error));
+            } else {
+                dispatch(() -> subscriber.onNext(event));
+            }
+        }
+
+        private void dispatch(Runnable notification) {
+            if (pending == null) {
+                notification.run();
+                return;
+            }
+
+            pending.add(notification);
+            if (scheduled.compareAndSet(false, true)) {
+                executor.execute(this::processPending);
+            }
+        }
+
+        /**
+         * Performs all queued notifications. Another task is only scheduled
+         * once this task has finished, so notifications added while this
+         * task is running are either processed by this task or by the next.
+         */
+        private void processPending() {
+            do {
+                Runnable notification = pending.poll();
+                while (notification != null) {
+                    try {
+                        notification.run();
+                    } catch (RuntimeException e) {
+                        LOGGER.log(Level.SEVERE, "Unhandled exception in subscriber", e);
+                    }
+                    notification = pending.poll();
+                }
+                scheduled.set(false);
+            } while (!pending.isEmpty() && scheduled.compareAndSet(false, true));
+        }
+    }
+
+    /**
+     * Describes which events and errors are retained while a subject does
+     * not have any subscribers. Events are discarded once more than
+     * {@code limit} events have been retained, or once they are older than
+     * {@code maxAge} milliseconds. A {@code maxAge} of zero means events
+     * are retained regardless of their age.
+     */
+    public record ReplayPolicy(int limit, long maxAge) {
+
+        public ReplayPolicy {
+            Preconditions.checkArgument(limit >= 0, "Invalid limit: " + limit);
+            Preconditions.checkArgument(maxAge >= 0L, "Invalid maximum age: " + maxAge);
+        }
+
+        /**
+         * Retains all events until a subscriber registers.
+         */
+        public static ReplayPolicy all() {
+            return new ReplayPolicy(Integer.MAX_VALUE, 0L);
+        }
+
+        /**
+         * Does not retain any events, events that are published while there
+         * are no subscribers are discarded.
+         */
+        public static ReplayPolicy none() {
+            return new ReplayPolicy(0, 0L);
+        }
+
+        /**
+         * Retains only the most recent {@code n} events.
+         */
+        public static ReplayPolicy last(int n) {
+            return new ReplayPolicy(n, 0L);
+        }
+
+        /**
+         * Retains only the most recent event.
+         */
+        public static ReplayPolicy lastValue() {
+            return new ReplayPolicy(1, 0L);
+        }
+
+        /**
+         * Retains events that were published within the specified amount of
+         * time before a subscriber registers.
+         *
+         * @throws IllegalArgumentException if the duration is not positive.
+         */
+        public static ReplayPolicy window(Duration window) {
+            Preconditions.checkArgument(window.isPositive(), "Invalid window: " + window);
+            return new ReplayPolicy(Integer.MAX_VALUE, Math.max(window.toMillis(), 1L));
+        }
+    }
+
+    /**
+     * Ring buffer that retains elements based on a {@link ReplayPolicy}.
+     * Adding an element is amortized O(1), the oldest element is overwritten
+     * once the buffer has reached its limit. Expired elements are removed
+     * whenever an element is added, so the buffer does not keep growing when
+     * nobody subscribes. The buffer grows on demand, so that
+     * policies with a high limit do not allocate the entire buffer upfront.
+     */
+    private static class ReplayBuffer<E> {
+
+        private ReplayPolicy policy;
+        private Object[] elements;
+        private long[] times;
+        private int head;
+        private int size;
+
+        public ReplayBuffer(ReplayPolicy policy) {
+            int initialCapacity = Math.min(policy.limit(), 16);
+
+            this.policy = policy;
+            this.elements = new Object[initialCapacity];
+            this.times = policy.maxAge() > 0L ? new long[initialCapacity] : null;
+            this.head = 0;
+            this.size = 0;
+        }
+
+        public synchronized void add(E element) {
+            if (policy.limit() == 0) {
+                return;
+            }
+
+            removeExpired();
+
+            if (size == elements.length) {
+                if (size < policy.limit()) {
+                    grow();
+                } else {
+                    removeOldest();
+                }
+            }
+
+            int index = (head + size) % elements.length;
+            elements[index] = element;
+            if (times != null) {
+                times[index] = System.currentTimeMillis();
+            }
+            size++;
+        }
+
+        private void grow() {
+            int capacity = (int) Math.min((long) elements.length * 2L, policy.limit());
+            Object[] newElements = new Object[capacity];
+            long[] newTimes = times == null ? null : new long[capacity];
+
+            for (int i = 0; i < size; i++) {
+                int index = (head + i) % elements.length;
+                newElements[i] = elements[index];
+                if (times != null) {
+                    newTimes[i] = times[index];
+                }
+            }
+
+            elements = newElements;
+            times = newTimes;
+            head = 0;
+        }
+
+        private void removeOldest() {
+            elements[head] = null;
+            head = (head + 1) % elements.length;
+            size--;
+        }
+
+        private void removeExpired() {
+            if (times != null) {
+                long now = System.currentTimeMillis();
+                while (size > 0 && now - times[head] > policy.maxAge()) {
+                    removeOldest();
+                }
+            }
+        }
+
+        public synchronized boolean isEmpty() {
+            removeExpired();
+            return size == 0;
+        }
+
+        @SuppressWarnings("unchecked")
+        public synchronized List<E> snapshot() {
+            removeExpired();
+            List<E> result = new ArrayList<>(size);
+            for (int i = 0; i < size; i++) {
+                result.add((E) elements[(head + i) % elements.length]);
+            }
+            return result;
+        }
+    }
+
+    /**
+     * Event or error that has been buffered for a subscriber, or retained
+     * until a subscriber registers.
+     */
+    private record Notification<T>(T event, Throwable error) {
+    }
+
+    /**
+     * Events that are collected by {@link #buffer(int)} and
+     * {@link #buffer(Duration)}. Events are added and drained from different
+     * threads, so access is synchronized.
+     */
+    private static class Batch<T> {
+
+        private List<T> events = new ArrayList<>();
+
+        /**
+         * Adds an event, and drains the batch if it has reached the specified
+         * size. Returns the drained events, or {@code null} if the batch is
+         * not yet full.
+         */
+        public synchronized List<T> add(T event, int size) {
+            events.add(event);
+            return events.size() >= size ? drain() : null;
+        }
+
+        public synchronized List<T> drain() {
+            List<T> result = events;
+            events = new ArrayList<>();
+            return result;
+        }
+    }
+
+    /**
+     * Keeps track of the currently open window for {@link #window(int)} and
+     * {@link #window(Duration)}. A new window is opened when an event is
+     * received while no window is open.
+     */
+    private static class Window<T> {
+
+        private Subject<Subject<T>> windows;
+        private Subject<T> current;
+        private int size;
+
+        public Window(Subject<Subject<T>> windows) {
+            this.windows = windows;
+            this.current = null;
+            this.size = 0;
+        }
+
+        public synchronized void add(T event, int limit) {
+            if (current == null) {
+                current = new Subject<>();
+                windows.next(current);
+            }
+
+            current.next(event);
+            size++;
+
+            if (size >= limit) {
+                close();
+            }
+        }
+
+        public synchronized void close() {
+            if (current != null) {
+                current.complete();
+                current = null;
+                size = 0;
+            }
+        }
+    }
+
+    /**
+     * Task that is performed at a fixed interval by the shared scheduler,
+     * which can be started and stopped repeatedly. Exceptions thrown by the
+     * task are logged, so that they do not prevent subsequent executions.
+     * Instances are guarded by the subject that owns them.
+     */
+    private static class PeriodicTask {
+
+        private Runnable task;
+        private long interval;
+        private ScheduledFuture<?> timer;
+
+        public PeriodicTask(Runnable task, long interval) {
+            this.task = task;
+            this.interval = interval;
+            this.timer = null;
+        }
+
+        public void start() {
+            if (timer == null) {
+                timer = Scheduler.INSTANCE.scheduleAtFixedRate(this::run, interval, interval,
+                    TimeUnit.NANOSECONDS);
+            }
+        }
+
+        private void run() {
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                LOGGER.log(Level.SEVERE, "Unhandled exception in scheduled task", e);
+            }
+        }
+
+        public void stop() {
+            if (timer != null) {
+                timer.cancel(false);
+                timer = null;
+            }
+        }
+    }
+
+    /**
+     * Publishes the most recent event once no other events have been
+     * received for the configured delay. Only a single timer is scheduled
+     * at any time: when the timer fires before the delay has passed since
+     * the most recent event, it is rescheduled for the remaining time. This
+     * prevents every event from leaving a cancelled task in the scheduler.
+     */
+    private static class Debouncer<T> {
+
+        private Subject<T> target;
+        private long delay;
+        private Notification<T> latest;
+        private long latestTime;
+        private ScheduledFuture<?> timer;
+
+        public Debouncer(Subject<T> target, long delay) {
+            this.target = target;
+            this.delay = delay;
+        }
+
+        public synchronized void next(T event) {
+            latest = new Notification<>(event, null);
+            latestTime = System.nanoTime();
+
+            if (timer == null) {
+                timer = Scheduler.INSTANCE.schedule(this::fire, delay, TimeUnit.NANOSECONDS);
+            }
+        }
+
+        private void fire() {
+            Notification<T> ready;
+
+            synchronized (this) {
+                long remaining = latestTime + delay - System.nanoTime();
+                if (latest != null && remaining > 0L) {
+                    timer = Scheduler.INSTANCE.schedule(this::fire, remaining, TimeUnit.NANOSECONDS);
+                    return;
+                }
+
+                ready = latest;
+                latest = null;
+                timer = null;
+            }
+
+            if (ready != null) {
+                target.next(ready.event());
+            }
+        }
+
+        public void complete() {
+            Notification<T> ready;
+
+            synchronized (this) {
+                ready = latest;
+                latest = null;
+                if (timer != null) {
+                    timer.cancel(false);
+                    timer = null;
+                }
+            }
+
+            if (ready != null) {
+                target.next(ready.event());
+            }
+            target.complete();
+        }
+    }
+
+    /**
+     * Shared scheduler for operators that publish events based on time. The
+     * scheduler uses a single daemon thread, the operators only use it to
+     * publish events so scheduled tasks are short-lived. Cancelled tasks are
+     * removed from the scheduler's queue immediately, since operators cancel
+     * their tasks whenever they lose their last subscriber.
+     */
+    private static class Scheduler {
+
+        private static final ScheduledThreadPoolExecutor INSTANCE = create();
+
+        private static ScheduledThreadPoolExecutor create() {
+            ScheduledThreadPoolExecutor scheduler = new ScheduledThreadPoolExecutor(1,
+                new ThreadFactoryBuilder().setNameFormat("Subject-scheduler").setDaemon(true).build());
+            scheduler.setRemoveOnCancelPolicy(true);
+            return scheduler;
+        }
+    }
+
+    /**
+     * Shared executor that performs every task in a new virtual thread. The
+     * executor is only created when it is first used.
+     */
+    private static class VirtualThreadExecutor {
+
+        private static final ExecutorService INSTANCE = Executors.newVirtualThreadPerTaskExecutor();
+    }
+
+    /**
+     * Subject that has been fused through an intermediate subject, along
+     * with the stage it applies to the intermediate subject's events.
+     */
+    private record FusedChild(Subject<?> subject, Function<Object, Object> stage) {
+    }
+
+    /**
+     * Subscriber that applies a (possibly fused) stage created by
+     * {@link #map(Function)} or {@link #filter(Predicate)} to every event,
+     * and publishes the result to the target subject. Exceptions thrown
+     * by the stage are published to the target subject as errors.
+     */
+    @AllArgsConstructor
+    private static class StageSubscriber<S> implements Subscriber<Object> {
+
+        private Subject<S> target;
+        private Function<Object, Object> stage;
+
+        @Override
+        public void onSubscribe(Subscription subscription) {
+            target.stageSubscription = subscription;
+        }
+
+        /**
+         * Fused intermediate subjects do not process events or errors while
+         * they do not have any subscribers, see {@link Subject#fuse}.
+         */
+        private boolean isSuspended() {
+            return target.fused && target.subscribers.length == 0;
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public void onNext(Object event) {
+            if (isSuspended()) {
+                return;
+            }
+
+            try {
+                Object result = stage.apply(event);
+                if (result != FILTERED) {
+                    target.next((S) result);
+                }
+            } catch (Exception e) {
+                target.nextError(e);
+            }
+        }
+
+        @Override
+        public void onError(Throwable error) {
+            if (!isSuspended()) {
+                target.nextError(error);
+            }
+        }
+
+        @Override
+        public void onComplete() {
+        }
+    }
+
     /**
      * Implementation of the {@link Subscriber} interface that uses callback
      * methods to process incoming events and errors.
@@ -10,15 +10,33 @@ import com.google.common.collect.ForwardingCollection;
 import com.google.common.collect.Iterators;
 import lombok.Getter;
 
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.SequencedCollection;
+import java.util.Set;
 import java.util.stream.Stream;
 
 /**
  * Wraps an existing collection to allow subscribers to be notified whenever
  * elements are added to or removed from the collection.
+ * <p>
+ * Subscribers can choose between two forms of notifications.
+ * {@link #getAddedElements()} and {@link #getRemovedElements()} publish an
+ * event for every individual element. {@link #getChanges()} publishes a
+ * single {@link ChangeSet} for every operation, including bulk operations
+ * such as {@link #addAll(Collection)} and {@link #clear()}. The latter is
+ * more efficient when large numbers of elements are added or removed at
+ * the same time. Change sets are only created while there are subscribers,
+ * and are not retained for subscribers that register afterwards.
+ * <p>
+ * Both forms of notifications only include elements that were actually
+ * added to or removed from the underlying collection. For example, adding
+ * an element to a set that already contains that element does not lead to
+ * a notification.
  *
  * @param <E> The type of element included in this collection.
  */
@@ -27,11 +45,13 @@ public class SubscribableCollection<E> extends ForwardingCollection<E> {
     private Collection<E> elements;
     @Getter private Subject<E> addedElements;
     @Getter private Subject<E> removedElements;
+    @Getter private Subject<ChangeSet<E>> changes;
 
     private SubscribableCollection(Collection<E> elements) {
         this.elements = elements;
         this.addedElements = new Subject<>();
         this.removedElements = new Subject<>();
+        this.changes = new Subject<ChangeSet<E>>().withReplay(Subject.ReplayPolicy.none());
     }
 
     @Override
@@ -42,34 +62,55 @@ public class SubscribableCollection<E> extends ForwardingCollection<E> {
     @Override
     public boolean add(E element) {
         boolean result = elements.add(element);
-        addedElements.next(element);
+        if (result) {
+            publish(Collections.singletonList(element), Collections.emptyList());
+        }
         return result;
     }
 
+    @Override
+    public boolean addAll(Collection<? extends E> toAdd) {
+        // Copy the elements first, since the collection might be adding
+        // its own elements, which would modify it while iterating.
+        List<E> candidates = new ArrayList<>(toAdd);
+        List<E> added = new ArrayList<>(candidates.size());
+        for (E element : candidates) {
+            if (elements.add(element)) {
+                added.add(element);
+            }
+        }
+
+        publish(added, Collections.emptyList());
+        return !added.isEmpty();
+    }
+
     @Override
     @SuppressWarnings("unchecked")
     public boolean remove(Object element) {
         boolean result = elements.remove(element);
         if (result) {
-            removedElements.next((E) element);
+            publish(Collections.emptyList(), Collections.singletonList((E) element));
         }
         return result;
     }
 
     @Override
-    @SuppressWarnings("unchecked")
     public boolean removeAll(Collection<?> toRemove) {
-        boolean result = elements.removeAll(toRemove);
-        for (Object element : toRemove) { {
-            removedElements.next((E) element);
-        }}
+        Set<?> lookup = toRemove instanceof Set<?> set ? set : new HashSet<>(toRemove);
+        List<E> removed = elements.stream()
+            .filter(lookup::contains)
+            .toList();
+
+        boolean result = elements.removeAll(lookup);
+        publish(Collections.emptyList(), removed);
         return result;
     }
 
     @Override
     public boolean retainAll(Collection<?> toRetain) {
+        Set<?> lookup = toRetain instanceof Set<?> set ? set : new HashSet<>(toRetain);
         List<E> toRemove = elements.stream()
-            .filter(element -> !toRetain.contains(element))
+            .filter(element -> !lookup.contains(element))
             .toList();
 
         return removeAll(toRemove);
@@ -77,10 +118,38 @@ public class SubscribableCollection<E> extends ForwardingCollection<E> {
 
     @Override
     public void clear() {
-        for (E element : elements) {
+        if (changes.hasSubscribers()) {
+            List<E> removed = new ArrayList<>(elements);
+            elements.clear();
+            publish(Collections.emptyList(), removed);
+        } else {
+            for (E element : elements) {
+                removedElements.next(element);
+            }
+            elements.clear();
+        }
+    }
+
+    /**
+     * Notifies subscribers of an operation that has added and/or removed the
+     * specified elements. Per-element subscribers receive an event for each
+     * element, while change subscribers receive a single event for the
+     * entire operation. The change set is only created if there are
+     * currently change subscribers.
+     */
+    private void publish(List<E> added, List<E> removed) {
+        for (E element : added) {
+            addedElements.next(element);
+        }
+
+        for (E element : removed) {
             removedElements.next(element);
         }
-        elements.clear();
+
+        if ((!added.isEmpty() || !removed.isEmpty()) && changes.hasSubscribers()) {
+            changes.next(new ChangeSet<>(Collections.unmodifiableList(added),
+                Collections.unmodifiableList(removed)));
+        }
     }
 
     /**
@@ -123,4 +192,13 @@ public class SubscribableCollection<E> extends ForwardingCollection<E> {
     public static <E> SubscribableCollection<E> wrap(Collection<E> elements) {
         return new SubscribableCollection<>(elements);
     }
+
+    /**
+     * Describes the elements that were added to and removed from the
+     * collection by a single operation. Bulk operations such as
+     * {@link #addAll(Collection)} and {@link #clear()} are described by a
+     * single change set that includes all affected elements.
+     */
+    public record ChangeSet<E>(List<E> added, List<E> removed) {
+    }
 }
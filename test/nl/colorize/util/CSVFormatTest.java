@@ -7,9 +7,20 @@
 package nl.colorize.util;
 
 import org.junit.jupiter.api.Test;
-
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.List;
+import java.util.stream.Stream;
 
+import static java.nio.charset.StandardCharsets.UTF_16;
+import static java.nio.charset.StandardCharsets.UTF_8;
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.assertThrows;
@@ -183,4 +194,212 @@ class CSVFormatTest {
         assertEquals("a\tb\\nc", record.toCSV().trim());
         assertEquals("b\nc", format.parseCSV("a\tb\\nc").getFirst().get(1));
     }
+
+    @Test
+    void parseFromReader() {
+        String csv = "name;age\njohn;38\n\njane;40\n";
+
+        try (Stream<CSVRecord> records = CSVFormat.SEMICOLON.parseCSV(new StringReader(csv))) {
+            List<String> names = records
+                .map(record -> record.get("name") + ":" + record.get("age"))
+                .toList();
+
+            assertEquals(List.of("john:38", "jane:40"), names);
+        }
+    }
+
+    @Test
+    void parseFromInputStreamWithCustomLineSeparator() {
+        CSVFormat format = CSVFormat.withoutHeaders(',').withLineSeparator("\r\n");
+        byte[] csv = "a,b\r\nc,d\r\ne,f".getBytes(UTF_8);
+
+        try (Stream<CSVRecord> records = format.parseCSV(new ByteArrayInputStream(csv), UTF_8)) {
+            assertEquals(List.of("a", "c", "e"), records.map(record -> record.get(0)).toList());
+        }
+    }
+
+    @Test
+    void parseFromFile(@TempDir Path tempDir) throws IOException {
+        Path file = tempDir.resolve("test.csv");
+        Files.writeString(file, "name;age\njohn;38\njane;40\n", UTF_8);
+
+        try (Stream<CSVRecord> records = CSVFormat.SEMICOLON.parseCSV(file, UTF_8)) {
+            assertEquals(2, records.count());
+        }
+    }
+
+    @Test
+    void streamLargeInputLazily() {
+        int rows = 1_000_000;
+        Reader reader = new Reader() {
+            private int row = -1;
+            private String pending = "";
+
+            @Override
+            public int read(char[] buffer, int offset, int length) {
+                if (pending.isEmpty()) {
+                    if (row >= rows) {
+                        return -1;
+                    }
+                    pending = row == -1 ? "id;value\n" : row + ";value" + row + "\n";
+                    row++;
+                }
+
+                int count = Math.min(length, pending.length());
+                pending.getChars(0, count, buffer, offset);
+                pending = pending.substring(count);
+                return count;
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+
+        try (Stream<CSVRecord> records = CSVFormat.SEMICOLON.parseCSV(reader)) {
+            assertEquals(rows, records.filter(record -> record.get("value").startsWith("value")).count());
+        }
+    }
+
+    @Test
+    void tokenizeQuotedCells() {
+        CSVFormat format = CSVFormat.withoutHeaders(',').withLineSeparator("\n").withQuotes();
+        CSVRecord record = format.parseCSV("\"a,b\",\"\",\"c\"\"d\",\"e\nf\"").getFirst();
+
+        assertEquals(List.of("a,b", "", "c\"d", "e\nf"), record.getCells());
+    }
+
+    @Test
+    void preserveBackslashesInQuotedCells() {
+        CSVFormat format = CSVFormat.withoutHeaders(',').withLineSeparator("\n").withQuotes();
+        CSVRecord record = format.parseCSV("\"C:\\new\\data\",C:\\new\n").getFirst();
+
+        assertEquals(List.of("C:\\new\\data", "C:\\new"), record.getCells());
+        assertEquals("\"C:\\new\\data\",\"C:\\new\"\n", record.toCSV());
+    }
+
+    @Test
+    void decodeEscapedNewlinesWithoutQuotes() {
+        CSVFormat format = CSVFormat.withoutHeaders(';').withLineSeparator("\n");
+        CSVRecord record = format.of("first\nsecond", "b");
+
+        assertEquals("first\\nsecond;b\n", record.toCSV());
+        assertEquals(record.getCells(), format.parseCSV(record.toCSV()).getFirst().getCells());
+    }
+
+    @Test
+    void quotesAreNormalCharactersWithoutQuoteMode() {
+        CSVFormat format = CSVFormat.withoutHeaders(',').withLineSeparator("\n");
+        CSVRecord record = format.parseCSV("\"a\",b,").getFirst();
+
+        assertEquals(List.of("\"a\"", "b", ""), record.getCells());
+    }
+
+    @Test
+    void roundTripQuotedNewlines() {
+        CSVFormat format = CSVFormat.withoutHeaders(';').withLineSeparator("\n").withQuotes();
+        CSVRecord record = format.of("first\nsecond", "with;delimiter", "with \"quotes\"");
+        CSVRecord parsed = format.parseCSV(record.toCSV()).getFirst();
+
+        assertEquals(record.getCells(), parsed.getCells());
+    }
+
+    @Test
+    void tokenizeLongLines() {
+        CSVFormat format = CSVFormat.withoutHeaders(';').withLineSeparator("\n");
+        String longCell = "x".repeat(10_000);
+        List<CSVRecord> records = format.parseCSV("a;" + longCell + "\nb;c");
+
+        assertEquals(2, records.size());
+        assertEquals(longCell, records.get(0).get(1));
+        assertEquals("c", records.get(1).get(1));
+    }
+
+    @Test
+    void parseQuotedCellsSpanningMultipleLines() {
+        CSVFormat format = CSVFormat.withHeaders(',').withLineSeparator("\r\n").withQuotes();
+        String csv = "\"name\",\"address\"\r\n\"john\",\"first line\r\nsecond line\"\r\n\"jane\",\"x\"\r\n";
+        List<CSVRecord> records = format.parseCSV(csv);
+
+        assertEquals(2, records.size());
+        assertEquals("first line\r\nsecond line", records.get(0).get("address"));
+        assertEquals("jane", records.get(1).get("name"));
+    }
+
+    @Test
+    void quotedLineSeparatorsWithEscapedQuotes() {
+        CSVFormat format = CSVFormat.withoutHeaders(',').withLineSeparator("\n").withQuotes();
+        List<CSVRecord> records = format.parseCSV("\"a \"\"b\"\"\nc\",\"d\"\n\"e\",\"f\"\n");
+
+        assertEquals(2, records.size());
+        assertEquals(List.of("a \"b\"\nc", "d"), records.get(0).getCells());
+        assertEquals(List.of("e", "f"), records.get(1).getCells());
+    }
+
+    @Test
+    void parseInParallelChunks() {
+        CSVFormat format = CSVFormat.withHeaders(',').withLineSeparator("\r\n").withQuotes();
+        StringBuilder csv = new StringBuilder("\"id\",\"text\"\r\n");
+        for (int i = 0; i < 1000; i++) {
+            csv.append("\"" + i + "\",\"line " + i + "\r\nwith \"\"quotes\"\", and é\"\r\n");
+        }
+        List<CSVRecord> expected = format.parseCSV(csv.toString());
+        ByteBuffer buffer = ByteBuffer.wrap(csv.toString().getBytes(UTF_8));
+
+        for (int chunks : List.of(1, 2, 7, 64, 5000)) {
+            try (Stream<CSVRecord> records = format.parseParallel(buffer, UTF_8, true, chunks)) {
+                assertEquals(expected.toString(), records.toList().toString());
+            }
+        }
+
+        assertEquals(0, buffer.position());
+    }
+
+    @Test
+    void parseInParallelUnordered() {
+        CSVFormat format = CSVFormat.withoutHeaders(';').withLineSeparator("\n");
+        StringBuilder csv = new StringBuilder();
+        for (int i = 0; i < 10_000; i++) {
+            csv.append(i).append(";value ").append(i).append("\n");
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(csv.toString().getBytes(UTF_8));
+
+        try (Stream<CSVRecord> records = format.parseParallel(buffer, UTF_8, false, 16)) {
+            List<Integer> ids = records.map(record -> Integer.parseInt(record.get(0))).sorted().toList();
+
+            assertEquals(10_000, ids.size());
+            assertEquals(0, ids.getFirst());
+            assertEquals(9999, ids.getLast());
+        }
+    }
+
+    @Test
+    void parseFileInParallel(@TempDir Path tempDir) throws IOException {
+        CSVFormat format = CSVFormat.withHeaders(';').withLineSeparator("\n");
+        Path file = tempDir.resolve("test.csv");
+        Files.writeString(file, "\nname;age\njohn;38\njane;40", UTF_8);
+
+        try (Stream<CSVRecord> records = format.parseParallel(file, UTF_8, true)) {
+            List<CSVRecord> result = records.toList();
+
+            assertEquals(2, result.size());
+            assertEquals("john", result.get(0).get("name"));
+            assertEquals("40", result.get(1).get("age"));
+        }
+    }
+
+    @Test
+    void parseEmptyInputInParallel() {
+        ByteBuffer empty = ByteBuffer.allocate(0);
+
+        assertEquals(0, CSVFormat.COMMA.parseParallel(empty, UTF_8, true).count());
+        assertEquals(0, CSVFormat.withoutHeaders(',').parseParallel(empty, UTF_8, true, 4).count());
+    }
+
+    @Test
+    void parallelParsingRequiresSingleByteSeparators() {
+        ByteBuffer buffer = ByteBuffer.wrap("a,b".getBytes(UTF_16));
+
+        assertThrows(IllegalArgumentException.class, () -> CSVFormat.COMMA.parseParallel(buffer, UTF_16, true));
+    }
 }
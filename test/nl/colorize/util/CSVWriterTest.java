@@ -0,0 +1,96 @@
+//-----------------------------------------------------------------------------
+// Colorize Java Commons
+// Copyright 2007-2026 Colorize
+// Apache license (http://www.apache.org/licenses/LICENSE-2.0)
+//-----------------------------------------------------------------------------
+
+package nl.colorize.util;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.List;
+import java.util.stream.Stream;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class CSVWriterTest {
+
+    @Test
+    void writeRecords() throws IOException {
+        CSVFormat format = CSVFormat.SEMICOLON.withLineSeparator("\n");
+        List<CSVRecord> records = List.of(
+            format.of(List.of("name", "age"), "john", "38"),
+            format.of(List.of("name", "age"), "jane", "40")
+        );
+
+        StringWriter output = new StringWriter();
+        try (CSVWriter writer = new CSVWriter(output, format)) {
+            for (CSVRecord record : records) {
+                writer.write(record);
+            }
+        }
+
+        assertEquals("name;age\njohn;38\njane;40\n", output.toString());
+        assertEquals(format.toCSV(records), output.toString());
+    }
+
+    @Test
+    void writeWithQuotes() throws IOException {
+        CSVFormat format = CSVFormat.withoutHeaders(',').withLineSeparator("\n").withQuotes();
+
+        StringWriter output = new StringWriter();
+        try (CSVWriter writer = new CSVWriter(output, format)) {
+            writer.writeRow(List.of("a", "b,c", "d\"e"));
+        }
+
+        assertEquals("\"a\",\"b,c\",\"d\"\"e\"\n", output.toString());
+    }
+
+    @Test
+    void flushIncrementally() throws IOException {
+        CSVFormat format = CSVFormat.withoutHeaders(';').withLineSeparator("\n");
+        StringWriter output = new StringWriter();
+        CSVWriter writer = new CSVWriter(output, format);
+
+        writer.writeRow(List.of("a", "b"));
+
+        assertEquals("", output.toString());
+
+        writer.flush();
+
+        assertEquals("a;b\n", output.toString());
+    }
+
+    @Test
+    void writeManyRows() throws IOException {
+        CSVFormat format = CSVFormat.withoutHeaders(';').withLineSeparator("\n");
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+
+        try (CSVWriter writer = new CSVWriter(output, UTF_8, format)) {
+            for (int i = 0; i < 100_000; i++) {
+                writer.writeRow(List.of(String.valueOf(i), "value " + i, "é"));
+            }
+        }
+
+        String csv = output.toString(UTF_8);
+        try (Stream<CSVRecord> records = format.parseCSV(new StringReader(csv))) {
+            assertEquals(100_000, records.filter(record -> record.get(2).equals("é")).count());
+        }
+    }
+
+    @Test
+    void recordsMustHaveSameColumns() throws IOException {
+        CSVFormat format = CSVFormat.SEMICOLON;
+        CSVWriter writer = new CSVWriter(new StringWriter(), format);
+        writer.write(format.of(List.of("a", "b"), "1", "2"));
+
+        assertThrows(IllegalStateException.class, () -> writer.write(format.of(List.of("c", "d"), "1", "2")));
+        assertThrows(IllegalStateException.class, () -> writer.write(format.of("1", "2")));
+    }
+}
@@ -6,13 +6,34 @@
 
 package nl.colorize.util;
 
+import com.google.common.base.Preconditions;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
 
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Flow.Subscription;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 
 class CacheTest {
@@ -47,6 +68,37 @@ class CacheTest {
         assertTrue(cache.isCached(4));
     }
 
+    @Test
+    void evictLeastRecentlyUsed() {
+        Cache<Integer, String> cache = Cache.from((Integer key) -> "" + key, 3)
+            .withEvictionPolicy(Cache.EvictionPolicy.LRU);
+        cache.get(1);
+        cache.get(2);
+        cache.get(3);
+        cache.get(1);
+        cache.get(4);
+
+        assertTrue(cache.isCached(1));
+        assertFalse(cache.isCached(2));
+        assertTrue(cache.isCached(3));
+        assertTrue(cache.isCached(4));
+        assertEquals("Cache [3]\n    3=3\n    1=1\n    4=4", cache.toString());
+    }
+
+    @Test
+    void invalidateWithLeastRecentlyUsed() {
+        Cache<Integer, String> cache = Cache.from((Integer key) -> "" + key, 2)
+            .withEvictionPolicy(Cache.EvictionPolicy.LRU);
+        cache.get(1);
+        cache.get(2);
+        cache.invalidate(1);
+        cache.get(3);
+
+        assertFalse(cache.isCached(1));
+        assertTrue(cache.isCached(2));
+        assertTrue(cache.isCached(3));
+    }
+
     @Test
     void precomputeResults() {
         Map<String, Integer> values = Map.of("a", 2, "b", 3);
@@ -77,4 +129,600 @@ class CacheTest {
 
         assertEquals("Cache [0]", cache.toString());
     }
+
+    @Test
+    void atomicLoadingComputesOnce() throws Exception {
+        AtomicInteger calls = new AtomicInteger(0);
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+
+        Cache<String, String> cache = Cache.from((String key) -> {
+            calls.incrementAndGet();
+            started.countDown();
+            awaitUninterruptibly(release);
+            return key + "!";
+        }).withAtomicLoading();
+
+        try (ExecutorService executor = Executors.newFixedThreadPool(8)) {
+            List<Future<String>> results = new ArrayList<>();
+            results.add(executor.submit(() -> cache.get("a")));
+            started.await();
+            for (int i = 0; i < 7; i++) {
+                results.add(executor.submit(() -> cache.get("a")));
+            }
+            Thread.sleep(100);
+            release.countDown();
+
+            for (Future<String> result : results) {
+                assertEquals("a!", result.get());
+            }
+        }
+
+        assertEquals(1, calls.get());
+    }
+
+    @Test
+    void atomicLoadingRethrowsException() {
+        Cache<String, String> cache = Cache.<String, String>from(key -> {
+            throw new IllegalStateException(key);
+        }).withAtomicLoading();
+
+        assertThrows(IllegalStateException.class, () -> cache.get("a"));
+        assertFalse(cache.isCached("a"));
+    }
+
+    private static void awaitUninterruptibly(CountDownLatch latch) {
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    @Test
+    void expireAfterWrite() {
+        AtomicLong time = new AtomicLong(1000L);
+        AtomicInteger calls = new AtomicInteger(0);
+
+        Cache<String, String> cache = Cache.from((String key) -> key + calls.incrementAndGet())
+            .withTimeSource(time::get)
+            .withExpireAfterWrite(Duration.ofSeconds(10));
+
+        assertEquals("a1", cache.get("a"));
+        time.addAndGet(9_000L);
+        assertEquals("a1", cache.get("a"));
+        assertTrue(cache.isCached("a"));
+        time.addAndGet(1_000L);
+        assertFalse(cache.isCached("a"));
+        assertEquals("a2", cache.get("a"));
+    }
+
+    @Test
+    void expireAfterAccess() {
+        AtomicLong time = new AtomicLong(1000L);
+        AtomicInteger calls = new AtomicInteger(0);
+
+        Cache<String, String> cache = Cache.from((String key) -> key + calls.incrementAndGet())
+            .withTimeSource(time::get)
+            .withExpireAfterAccess(Duration.ofSeconds(10));
+
+        assertEquals("a1", cache.get("a"));
+        time.addAndGet(9_000L);
+        assertEquals("a1", cache.get("a"));
+        time.addAndGet(9_000L);
+        assertEquals("a1", cache.get("a"));
+        time.addAndGet(10_000L);
+        assertEquals("a2", cache.get("a"));
+    }
+
+    @Test
+    void refreshAfterWriteServesStaleValue() {
+        AtomicLong time = new AtomicLong(1000L);
+        AtomicInteger calls = new AtomicInteger(0);
+        List<Runnable> refreshTasks = new ArrayList<>();
+
+        Cache<String, String> cache = Cache.from((String key) -> key + calls.incrementAndGet())
+            .withTimeSource(time::get)
+            .withRefreshAfterWrite(Duration.ofSeconds(10), refreshTasks::add);
+
+        assertEquals("a1", cache.get("a"));
+        time.addAndGet(10_000L);
+        assertEquals("a1", cache.get("a"));
+        assertEquals("a1", cache.get("a"));
+        assertEquals(1, refreshTasks.size());
+
+        refreshTasks.getFirst().run();
+
+        assertEquals("a2", cache.get("a"));
+        assertEquals(2, calls.get());
+    }
+
+    @Test
+    void failedRefreshKeepsStaleValue() {
+        AtomicLong time = new AtomicLong(1000L);
+        AtomicInteger calls = new AtomicInteger(0);
+
+        Cache<String, String> cache = Cache.from((String key) -> {
+                if (calls.incrementAndGet() > 1) {
+                    throw new IllegalStateException("Refresh failed");
+                }
+                return key;
+            })
+            .withTimeSource(time::get)
+            .withRefreshAfterWrite(Duration.ofSeconds(10), Runnable::run);
+
+        assertEquals("a", cache.get("a"));
+        time.addAndGet(10_000L);
+        assertEquals("a", cache.get("a"));
+        assertEquals("a", cache.get("a"));
+        assertEquals(3, calls.get());
+    }
+
+    @Test
+    void rejectedRefreshIsAttemptedAgain() {
+        AtomicLong time = new AtomicLong(1000L);
+        AtomicInteger calls = new AtomicInteger(0);
+        AtomicInteger submitted = new AtomicInteger(0);
+
+        Cache<String, String> cache = Cache.from((String key) -> key + calls.incrementAndGet())
+            .withTimeSource(time::get)
+            .withRefreshAfterWrite(Duration.ofSeconds(10), task -> {
+                if (submitted.incrementAndGet() == 1) {
+                    throw new RejectedExecutionException("Queue full");
+                }
+                task.run();
+            });
+
+        assertEquals("a1", cache.get("a"));
+        time.addAndGet(10_000L);
+        assertEquals("a1", cache.get("a"));
+        assertEquals("a1", cache.get("a"));
+        assertEquals("a2", cache.get("a"));
+        assertEquals(2, submitted.get());
+    }
+
+    @Test
+    void cleanUpRemovesExpiredValues() {
+        AtomicLong time = new AtomicLong(1000L);
+        Cache<Integer, String> cache = Cache.from((Integer key) -> "value" + key)
+            .withTimeSource(time::get)
+            .withExpireAfterWrite(Duration.ofSeconds(10));
+        List<Tuple<Integer, String>> evicted = new ArrayList<>();
+        cache.getEvictions().subscribe(evicted::add);
+
+        cache.get(1);
+        time.addAndGet(5_000L);
+        cache.get(2);
+        time.addAndGet(5_000L);
+        cache.cleanUp();
+
+        assertEquals(1, cache.getTotalWeight());
+        assertEquals(List.of(Tuple.of(1, "value1")), evicted);
+    }
+
+    @Test
+    void evictBasedOnWeight() {
+        Cache<Integer, String> cache = Cache.from((Integer size) -> "x".repeat(size))
+            .withWeigher(String::length, 10L);
+
+        cache.get(4);
+        cache.get(5);
+
+        assertEquals(9L, cache.getTotalWeight());
+
+        cache.get(3);
+
+        assertFalse(cache.isCached(4));
+        assertTrue(cache.isCached(5));
+        assertTrue(cache.isCached(3));
+        assertEquals(8L, cache.getTotalWeight());
+
+        cache.invalidate(5);
+
+        assertEquals(3L, cache.getTotalWeight());
+    }
+
+    @Test
+    void valueHeavierThanBudgetIsNotCached() {
+        Cache<Integer, String> cache = Cache.from((Integer size) -> "x".repeat(size))
+            .withWeigher(String::length, 10L);
+
+        assertEquals("x".repeat(11), cache.get(11));
+        assertFalse(cache.isCached(11));
+        assertEquals(0L, cache.getTotalWeight());
+    }
+
+    @Test
+    void totalWeightWithoutWeigher() {
+        Cache<Integer, String> cache = Cache.from(key -> "" + key, 2);
+        cache.get(1);
+        cache.get(2);
+        cache.get(3);
+
+        assertEquals(2L, cache.getTotalWeight());
+
+        cache.invalidate();
+
+        assertEquals(0L, cache.getTotalWeight());
+    }
+
+    @Test
+    void recordStats() {
+        Cache<Integer, String> cache = Cache.from((Integer key) -> {
+            Preconditions.checkArgument(key > 0);
+            return "" + key;
+        }, 2).withStats();
+
+        cache.get(1);
+        cache.get(1);
+        cache.get(2);
+        cache.get(3);
+        assertThrows(IllegalArgumentException.class, () -> cache.get(-1));
+
+        Cache.Stats stats = cache.getStats();
+
+        assertEquals(1L, stats.hits());
+        assertEquals(4L, stats.misses());
+        assertEquals(3L, stats.loadSuccesses());
+        assertEquals(1L, stats.loadFailures());
+        assertEquals(1L, stats.evictions());
+        assertEquals(0.2, stats.hitRate(), 0.001);
+        assertTrue(stats.totalLoadTime() > 0L);
+    }
+
+    @Test
+    void statsAreZeroWhenNotRecording() {
+        Cache<Integer, String> cache = Cache.from(key -> "" + key);
+        cache.get(1);
+        cache.get(1);
+
+        assertEquals(new Cache.Stats(0L, 0L, 0L, 0L, 0L, 0L), cache.getStats());
+    }
+
+    @Test
+    void publishEvictions() {
+        AtomicLong time = new AtomicLong(0L);
+        Cache<Integer, String> cache = Cache.from((Integer key) -> "" + key, 2)
+            .withTimeSource(time::get)
+            .withExpireAfterWrite(Duration.ofSeconds(1));
+        List<Tuple<Integer, String>> evicted = new ArrayList<>();
+        cache.getEvictions().subscribe(evicted::add);
+
+        cache.get(1);
+        cache.get(2);
+        cache.get(3);
+        cache.invalidate(2);
+        time.set(1000L);
+        cache.get(3);
+
+        assertEquals(List.of(Tuple.of(1, "1"), Tuple.of(3, "3")), evicted);
+    }
+
+    @Test
+    void evictionsAreNotReplayed() {
+        Cache<Integer, String> cache = Cache.from((Integer key) -> "" + key, 1);
+        List<Tuple<Integer, String>> evicted = new ArrayList<>();
+        Subscription subscription = cache.getEvictions().subscribe(_ -> {});
+
+        cache.get(1);
+        cache.get(2);
+        subscription.cancel();
+        cache.get(3);
+        cache.getEvictions().subscribe(evicted::add);
+        cache.get(4);
+
+        assertEquals(List.of(Tuple.of(3, "3")), evicted);
+    }
+
+    @Test
+    void getAllUsesBatchFunction() {
+        List<Set<Integer>> batches = new ArrayList<>();
+
+        Cache<Integer, String> cache = Cache.from((Integer key) -> "single" + key)
+            .withBatchFunction(keys -> {
+                batches.add(Set.copyOf(keys));
+                return keys.stream()
+                    .filter(key -> key != 4)
+                    .collect(Collectors.toMap(key -> key, key -> "batch" + key));
+            });
+
+        cache.get(1);
+        Map<Integer, String> result = cache.getAll(List.of(3, 1, 2, 4, 3));
+
+        assertEquals("{3=batch3, 1=single1, 2=batch2, 4=single4}", result.toString());
+        assertEquals(List.of(Set.of(2, 3, 4)), batches);
+        assertTrue(cache.isCached(2));
+        assertTrue(cache.isCached(4));
+    }
+
+    @Test
+    void atomicLoadingIncludesBatchLoads() throws Exception {
+        AtomicInteger singleCalls = new AtomicInteger(0);
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+
+        Cache<Integer, String> cache = Cache.from((Integer key) -> {
+                singleCalls.incrementAndGet();
+                return "single" + key;
+            })
+            .withBatchFunction(keys -> {
+                started.countDown();
+                awaitUninterruptibly(release);
+                return keys.stream().collect(Collectors.toMap(key -> key, key -> "batch" + key));
+            })
+            .withAtomicLoading()
+            .withStats();
+
+        try (ExecutorService executor = Executors.newFixedThreadPool(2)) {
+            Future<Map<Integer, String>> batch = executor.submit(() -> cache.getAll(List.of(1, 2)));
+            started.await();
+            Future<String> single = executor.submit(() -> cache.get(1));
+            Thread.sleep(100);
+            release.countDown();
+
+            assertEquals("{1=batch1, 2=batch2}", batch.get().toString());
+            assertEquals("batch1", single.get());
+        }
+
+        assertEquals(0, singleCalls.get());
+        assertEquals(2L, cache.getStats().loadSuccesses());
+    }
+
+    @Test
+    void getAllWithoutBatchFunction() {
+        Map<String, Integer> values = Map.of("a", 2, "b", 3);
+        Cache<String, Integer> cache = Cache.from(values::get);
+
+        assertEquals(Map.of("a", 2, "b", 3), cache.getAll(List.of("a", "b", "c")));
+    }
+
+    @Test
+    void getAllAsync() throws InterruptedException {
+        Cache<Integer, String> cache = Cache.from(key -> "" + key);
+        CountDownLatch done = new CountDownLatch(1);
+        List<Map<Integer, String>> received = new CopyOnWriteArrayList<>();
+
+        cache.getAllAsync(List.of(1, 2)).subscribe(result -> {
+            received.add(result);
+            done.countDown();
+        });
+        done.await();
+
+        assertEquals(List.of(Map.of(1, "1", 2, "2")), received);
+        assertTrue(cache.isCached(1));
+        assertTrue(cache.isCached(2));
+    }
+
+    @Test
+    void tinyLfuKeepsFrequentlyRequestedKeys() {
+        Cache<Integer, String> cache = Cache.from((Integer key) -> "" + key, 3)
+            .withEvictionPolicy(Cache.EvictionPolicy.TINY_LFU);
+
+        for (int i = 0; i < 5; i++) {
+            cache.get(1);
+            cache.get(2);
+            cache.get(3);
+        }
+
+        for (int i = 100; i < 110; i++) {
+            cache.get(i);
+        }
+
+        assertTrue(cache.isCached(1));
+        assertTrue(cache.isCached(2));
+        assertFalse(cache.isCached(100));
+        assertEquals(3L, cache.getTotalWeight());
+    }
+
+    @Test
+    void tinyLfuImprovesHitRateForSkewedDistribution() {
+        List<Integer> trace = createZipfianTrace(10_000, 200_000, new Random(1234));
+
+        double fifo = measureHitRate(Cache.EvictionPolicy.FIFO, trace);
+        double lru = measureHitRate(Cache.EvictionPolicy.LRU, trace);
+        double tinyLfu = measureHitRate(Cache.EvictionPolicy.TINY_LFU, trace);
+
+        assertTrue(tinyLfu > fifo + 0.05, "FIFO " + fifo + " vs TinyLFU " + tinyLfu);
+        assertTrue(tinyLfu > lru + 0.05, "LRU " + lru + " vs TinyLFU " + tinyLfu);
+    }
+
+    /**
+     * Creates a trace of cache requests where the popularity of keys follows
+     * a Zipfian distribution. Every tenth request is for a key that is only
+     * requested once, to simulate scans polluting the cache.
+     */
+    private List<Integer> createZipfianTrace(int keys, int length, Random random) {
+        double[] distribution = new double[keys];
+        double total = 0.0;
+        for (int i = 0; i < keys; i++) {
+            total += 1.0 / (i + 1);
+            distribution[i] = total;
+        }
+
+        List<Integer> trace = new ArrayList<>();
+        for (int i = 0; i < length; i++) {
+            if (i % 10 == 0) {
+                trace.add(-i);
+            } else {
+                int index = Arrays.binarySearch(distribution, random.nextDouble() * total);
+                trace.add(index >= 0 ? index : -index - 1);
+            }
+        }
+        return trace;
+    }
+
+    private double measureHitRate(Cache.EvictionPolicy evictionPolicy, List<Integer> trace) {
+        Cache<Integer, String> cache = Cache.from((Integer key) -> "" + key, 500)
+            .withEvictionPolicy(evictionPolicy)
+            .withStats();
+
+        for (int key : trace) {
+            cache.get(key);
+        }
+
+        return cache.getStats().hitRate();
+    }
+
+    @Test
+    void overflowToFile(@TempDir Path tempDir) throws IOException {
+        AtomicInteger calls = new AtomicInteger(0);
+
+        Cache<Integer, String> cache = Cache.from((Integer key) -> {
+            calls.incrementAndGet();
+            return "value" + key;
+        }, 2).withOverflow(tempDir.resolve("overflow.bin"), 1024, UTF8_CODEC);
+
+        cache.get(1);
+        cache.get(2);
+        cache.get(3);
+
+        assertTrue(cache.isCached(1));
+        assertEquals("value1", cache.get(1));
+        assertEquals(3, calls.get());
+        assertEquals("Cache [2]\n    3=value3\n    1=value1", cache.toString());
+
+        cache.invalidate();
+
+        assertFalse(cache.isCached(2));
+    }
+
+    @Test
+    void overflowFileOverwritesOldestValues(@TempDir Path tempDir) throws IOException {
+        Cache<Integer, String> cache = Cache.from((Integer key) -> "value" + key, 1)
+            .withOverflow(tempDir.resolve("overflow.bin"), 20, UTF8_CODEC);
+
+        for (int i = 1; i <= 5; i++) {
+            cache.get(i);
+        }
+
+        assertFalse(cache.isCached(1));
+        assertTrue(cache.isCached(2));
+        assertTrue(cache.isCached(3));
+        assertTrue(cache.isCached(4));
+        assertTrue(cache.isCached(5));
+        assertEquals("value4", cache.get(4));
+    }
+
+    @Test
+    void overflowValuesKeepTheirExpiry(@TempDir Path tempDir) throws IOException {
+        AtomicLong time = new AtomicLong(0L);
+        AtomicInteger calls = new AtomicInteger(0);
+
+        Cache<Integer, String> cache = Cache.from((Integer key) -> "value" + key + "-" + calls.incrementAndGet(), 1)
+            .withTimeSource(time::get)
+            .withExpireAfterWrite(Duration.ofMillis(100))
+            .withOverflow(tempDir.resolve("overflow.bin"), 1024, UTF8_CODEC);
+
+        assertEquals("value1-1", cache.get(1));
+        time.set(50L);
+        assertEquals("value2-2", cache.get(2));
+        assertTrue(cache.isCached(1));
+        assertEquals("value1-1", cache.get(1));
+
+        time.set(100L);
+
+        assertFalse(cache.isCached(1));
+        assertEquals("value1-3", cache.get(1));
+        assertTrue(cache.isCached(2));
+
+        time.set(1000L);
+
+        assertFalse(cache.isCached(2));
+        assertEquals("value2-4", cache.get(2));
+    }
+
+    @Test
+    void shardedCache() {
+        Cache<Integer, String> cache = Cache.from((Integer key) -> "value" + key, 100)
+            .withShards(4);
+
+        for (int i = 0; i < 1000; i++) {
+            assertEquals("value" + i, cache.get(i));
+        }
+
+        assertEquals(100, cache.getTotalWeight());
+        assertTrue(cache.isCached(999));
+        assertFalse(cache.isCached(0));
+
+        cache.invalidate();
+
+        assertEquals(0, cache.getTotalWeight());
+        assertFalse(cache.isCached(999));
+    }
+
+    @Test
+    void shardedCacheFromMultipleThreads() throws Exception {
+        Cache<Integer, String> cache = Cache.from((Integer key) -> "value" + key, 1000)
+            .withEvictionPolicy(Cache.EvictionPolicy.LRU)
+            .withShards(8);
+
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        List<Future<Boolean>> results = new ArrayList<>();
+
+        for (int i = 0; i < 8; i++) {
+            long seed = i;
+            results.add(executor.submit(() -> {
+                Random random = new Random(seed);
+                boolean correct = true;
+                for (int j = 0; j < 50_000; j++) {
+                    int key = random.nextInt(5000);
+                    correct &= cache.get(key).equals("value" + key);
+                }
+                return correct;
+            }));
+        }
+
+        for (Future<Boolean> result : results) {
+            assertTrue(result.get());
+        }
+        executor.shutdown();
+
+        assertTrue(cache.getTotalWeight() <= 1000, "Total weight " + cache.getTotalWeight());
+    }
+
+    @Test
+    void invalidShardCount() {
+        Cache<String, String> cache = Cache.from(key -> key);
+
+        assertThrows(IllegalArgumentException.class, () -> cache.withShards(0));
+        assertThrows(IllegalArgumentException.class, () -> Cache.from(key -> key, 10).withShards(16));
+    }
+
+    @Test
+    void shardsDivideCapacityExactly() {
+        Cache<Integer, String> cache = Cache.from((Integer key) -> "value" + key, 10)
+            .withShards(4);
+
+        for (int i = 0; i < 1000; i++) {
+            cache.get(i);
+        }
+
+        assertEquals(10, cache.getTotalWeight());
+    }
+
+    @Test
+    void shardsDivideMaxWeightExactly() {
+        Cache<Integer, String> cache = Cache.from((Integer key) -> "value" + key)
+            .withShards(4)
+            .withWeigher(value -> 1L, 10L);
+
+        for (int i = 0; i < 1000; i++) {
+            cache.get(i);
+        }
+
+        assertEquals(10, cache.getTotalWeight());
+        assertThrows(IllegalArgumentException.class, () -> cache.withWeigher(value -> 1L, 3L));
+    }
+
+    private static final Cache.Codec<String> UTF8_CODEC = new Cache.Codec<>() {
+        @Override
+        public byte[] encode(String value) {
+            return value.getBytes(StandardCharsets.UTF_8);
+        }
+
+        @Override
+        public String decode(byte[] data) {
+            return new String(data, StandardCharsets.UTF_8);
+        }
+    };
 }
@@ -10,9 +10,11 @@ import org.junit.jupiter.api.Test;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Set;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
 class EventQueueTest {
 
@@ -87,4 +89,74 @@ class EventQueueTest {
         assertEquals(List.of("a"), events);
         assertEquals(0, errors.size());
     }
+
+    @Test
+    void flushIntoBuffer() {
+        Subject<String> subject = new Subject<>();
+        EventQueue<String> eventQueue = EventQueue.subscribe(subject);
+
+        List<String> events = new ArrayList<>();
+        List<Exception> errors = new ArrayList<>();
+
+        subject.next("a");
+        subject.nextError(new IllegalStateException());
+        subject.next("b");
+        eventQueue.flush(events, errors);
+
+        assertEquals(List.of("a", "b"), events);
+        assertEquals(1, errors.size());
+
+        events.clear();
+        subject.next("c");
+        eventQueue.flush(events, errors);
+
+        assertEquals(List.of("c"), events);
+    }
+
+    @Test
+    void receiveFromMultipleThreads() throws InterruptedException {
+        EventQueue<Integer> eventQueue = new EventQueue<>();
+        List<Integer> events = new ArrayList<>();
+        List<Exception> errors = new ArrayList<>();
+        List<Thread> producers = new ArrayList<>();
+
+        for (int i = 0; i < 4; i++) {
+            int offset = i * 100_000;
+            producers.add(Thread.ofPlatform().start(() -> {
+                for (int j = 0; j < 100_000; j++) {
+                    eventQueue.onNext(offset + j);
+                }
+            }));
+        }
+
+        while (producers.stream().anyMatch(Thread::isAlive)) {
+            eventQueue.flush(events, errors);
+        }
+        for (Thread producer : producers) {
+            producer.join();
+        }
+        eventQueue.flush(events, errors);
+
+        assertEquals(400_000, events.size());
+        assertEquals(400_000, Set.copyOf(events).size());
+
+        int[] last = {-1, 99_999, 199_999, 299_999};
+        for (int event : events) {
+            assertTrue(event > last[event / 100_000]);
+            last[event / 100_000] = event;
+        }
+    }
+
+    @Test
+    void errorThatIsNotException() {
+        EventQueue<String> eventQueue = new EventQueue<>();
+        eventQueue.onError(new AssertionError("test"));
+
+        List<String> events = new ArrayList<>();
+        List<Exception> errors = new ArrayList<>();
+        eventQueue.flush(events::add, errors::add);
+
+        assertEquals(0, events.size());
+        assertEquals(1, errors.size());
+    }
 }
@@ -6,12 +6,21 @@
 
 package nl.colorize.util;
 
+import com.google.common.util.concurrent.Uninterruptibles;
 import org.junit.jupiter.api.Test;
 
+import java.time.Duration;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
 
 class MemoizedTest {
 
@@ -37,4 +46,56 @@ class MemoizedTest {
         assertEquals("test", memoized.get());
         assertEquals("test", memoized.toString());
     }
+
+    @Test
+    void computeOnceFromMultipleThreads() throws Exception {
+        AtomicInteger calls = new AtomicInteger(0);
+        Memoized<String> memoized = Memoized.compute(() -> {
+            calls.incrementAndGet();
+            Uninterruptibles.sleepUninterruptibly(100, TimeUnit.MILLISECONDS);
+            return "test";
+        });
+
+        try (ExecutorService executor = Executors.newFixedThreadPool(8)) {
+            List<Future<String>> results = new ArrayList<>();
+            for (int i = 0; i < 8; i++) {
+                results.add(executor.submit(memoized::get));
+            }
+
+            for (Future<String> result : results) {
+                assertEquals("test", result.get());
+            }
+        }
+
+        assertEquals(1, calls.get());
+    }
+
+    @Test
+    void memoizeNull() {
+        AtomicInteger calls = new AtomicInteger(0);
+        Memoized<String> memoized = Memoized.compute(() -> {
+            calls.incrementAndGet();
+            return null;
+        });
+
+        assertNull(memoized.get());
+        assertNull(memoized.get());
+        assertEquals(1, calls.get());
+        assertEquals("null", memoized.toString());
+    }
+
+    @Test
+    void expiring() {
+        AtomicLong time = new AtomicLong(1000L);
+        AtomicInteger calls = new AtomicInteger(0);
+        Memoized<Integer> memoized = Memoized.expiring(calls::incrementAndGet,
+            Duration.ofSeconds(10), time::get);
+
+        assertEquals(1, memoized.get());
+        time.addAndGet(9_000L);
+        assertEquals(1, memoized.get());
+        time.addAndGet(1_000L);
+        assertEquals(2, memoized.get());
+        assertEquals(2, memoized.get());
+    }
 }
@@ -6,13 +6,16 @@
 
 package nl.colorize.util;
 
+import com.google.common.base.Equivalence;
 import org.junit.jupiter.api.Test;
 
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
 
 class SignalTest {
 
@@ -37,4 +40,256 @@ class SignalTest {
         assertEquals("1", signal.get());
         assertEquals(Collections.emptyList(), events);
     }
+
+    @Test
+    void computedSignal() {
+        Signal<Integer> a = Signal.of(2);
+        Signal<Integer> b = Signal.of(3);
+        Signal<Integer> sum = Signal.computed(() -> a.get() + b.get());
+
+        assertEquals(5, sum.get());
+
+        a.set(10);
+
+        assertEquals(13, sum.get());
+        assertEquals("13", sum.toString());
+    }
+
+    @Test
+    void computedSignalIsLazy() {
+        AtomicInteger computations = new AtomicInteger(0);
+        Signal<Integer> source = Signal.of(1);
+        Signal<Integer> doubled = Signal.computed(() -> {
+            computations.incrementAndGet();
+            return source.get() * 2;
+        });
+
+        assertEquals(0, computations.get());
+        assertEquals(2, doubled.get());
+        assertEquals(2, doubled.get());
+        assertEquals(1, computations.get());
+
+        source.set(2);
+        source.set(3);
+        source.set(4);
+
+        assertEquals(1, computations.get());
+        assertEquals(8, doubled.get());
+        assertEquals(2, computations.get());
+    }
+
+    @Test
+    void dynamicDependencies() {
+        Signal<Boolean> useFirst = Signal.of(true);
+        Signal<String> first = Signal.of("a");
+        Signal<String> second = Signal.of("b");
+        AtomicInteger computations = new AtomicInteger(0);
+        Signal<String> selected = Signal.computed(() -> {
+            computations.incrementAndGet();
+            return useFirst.get() ? first.get() : second.get();
+        });
+
+        assertEquals("a", selected.get());
+
+        useFirst.set(false);
+
+        assertEquals("b", selected.get());
+
+        first.set("c");
+
+        assertEquals("b", selected.get());
+        assertEquals(2, computations.get());
+    }
+
+    @Test
+    void glitchFreePropagation() {
+        Signal<Integer> source = Signal.of(1);
+        Signal<Integer> left = Signal.computed(() -> source.get() + 1);
+        Signal<Integer> right = Signal.computed(() -> source.get() * 10);
+        Signal<String> combined = Signal.computed(() -> left.get() + "/" + right.get());
+
+        List<String> events = new ArrayList<>();
+        combined.getChanges().subscribe(events::add);
+
+        assertEquals("2/10", combined.get());
+
+        source.set(2);
+        source.set(3);
+
+        assertEquals(List.of("3/20", "4/30"), events);
+    }
+
+    @Test
+    void subscribersSeeUpdatedComputedSignals() {
+        Signal<Integer> x = Signal.of(1);
+        Signal<Integer> doubled = Signal.computed(() -> x.get() * 2);
+        List<String> events = new ArrayList<>();
+        x.getChanges().subscribe(value -> events.add(value + "=" + doubled.get()));
+
+        assertEquals(2, doubled.get());
+
+        x.set(5);
+
+        assertEquals("[5=10]", events.toString());
+    }
+
+    @Test
+    void unusedComputedSignalsAreDetached() {
+        Signal<Integer> x = Signal.of(1);
+        for (int i = 0; i < 1000; i++) {
+            Signal<Integer> computed = Signal.computed(() -> x.get() + 1);
+            computed.get();
+        }
+
+        assertEquals(1000, x.getDependentCount());
+
+        x.set(2);
+
+        assertEquals(0, x.getDependentCount());
+    }
+
+    @Test
+    void detachedComputedSignalIsRecalculated() {
+        Signal<Integer> x = Signal.of(1);
+        Signal<Integer> plusOne = Signal.computed(() -> x.get() + 1);
+        Signal<Integer> plusTwo = Signal.computed(() -> plusOne.get() + 1);
+        List<Integer> events = new ArrayList<>();
+        plusTwo.getChanges().subscribe(events::add);
+
+        assertEquals(3, plusTwo.get());
+
+        x.set(2);
+        x.set(3);
+
+        assertEquals(4, plusOne.get());
+        assertEquals(List.of(4, 5), events);
+    }
+
+    @Test
+    void disposeComputedSignal() {
+        Signal<Integer> x = Signal.of(1);
+        Signal<Integer> doubled = Signal.computed(() -> x.get() * 2);
+        List<Integer> events = new ArrayList<>();
+        doubled.getChanges().subscribe(events::add);
+        doubled.get();
+
+        doubled.dispose();
+        x.set(2);
+
+        assertEquals(0, x.getDependentCount());
+        assertEquals(List.of(), events);
+        assertEquals(4, doubled.get());
+    }
+
+    @Test
+    void batchUpdatesRecomputeOnce() {
+        Signal<Integer> a = Signal.of(1);
+        Signal<Integer> b = Signal.of(2);
+        AtomicInteger computations = new AtomicInteger(0);
+        Signal<Integer> sum = Signal.computed(() -> {
+            computations.incrementAndGet();
+            return a.get() + b.get();
+        });
+
+        List<Integer> events = new ArrayList<>();
+        sum.getChanges().subscribe(events::add);
+        sum.get();
+
+        Signal.batch(() -> {
+            a.set(10);
+            b.set(20);
+            Signal.batch(() -> a.set(100));
+        });
+
+        assertEquals(List.of(120), events);
+        assertEquals(2, computations.get());
+    }
+
+    @Test
+    void cannotSetComputedSignal() {
+        Signal<Integer> computed = Signal.computed(() -> 1);
+
+        assertThrows(IllegalStateException.class, () -> computed.set(2));
+    }
+
+    @Test
+    void circularDependency() {
+        List<Signal<Integer>> signals = new ArrayList<>();
+        signals.add(Signal.computed(() -> signals.getFirst().get() + 1));
+
+        assertThrows(IllegalStateException.class, () -> signals.getFirst().get());
+    }
+
+    @Test
+    void equivalenceSkipsUnchangedValues() {
+        Signal<String> signal = Signal.of("a").withEquivalence(Equivalence.equals());
+        List<String> events = new ArrayList<>();
+        signal.getChanges().subscribe(events::add);
+
+        signal.set("a");
+        signal.set("b");
+        signal.set("b");
+        signal.set("a");
+
+        assertEquals(List.of("b", "a"), events);
+    }
+
+    @Test
+    void customEquivalence() {
+        Equivalence<String> ignoreCase = new Equivalence<>() {
+            @Override
+            protected boolean doEquivalent(String a, String b) {
+                return a.equalsIgnoreCase(b);
+            }
+
+            @Override
+            protected int doHash(String value) {
+                return value.toLowerCase().hashCode();
+            }
+        };
+
+        Signal<String> signal = Signal.of("a").withEquivalence(ignoreCase);
+        List<String> events = new ArrayList<>();
+        signal.getChanges().subscribe(events::add);
+
+        signal.set("A");
+        signal.set("b");
+
+        assertEquals(List.of("b"), events);
+        assertEquals("b", signal.get());
+    }
+
+    @Test
+    void withoutEquivalenceAlwaysNotify() {
+        Signal<String> signal = Signal.of("a");
+        List<String> events = new ArrayList<>();
+        signal.getChanges().subscribe(events::add);
+
+        signal.set("a");
+        signal.set("a");
+
+        assertEquals(List.of("a", "a"), events);
+    }
+
+    @Test
+    void coalesceChanges() {
+        List<Runnable> tasks = new ArrayList<>();
+        Signal<Integer> signal = Signal.of(0).withCoalescing(tasks::add);
+        List<Integer> events = new ArrayList<>();
+        signal.getChanges().subscribe(events::add);
+
+        signal.set(1);
+        signal.set(2);
+        signal.set(3);
+
+        assertEquals(3, signal.get());
+        assertEquals(List.of(), events);
+        assertEquals(1, tasks.size());
+
+        tasks.removeFirst().run();
+        signal.set(4);
+        tasks.removeFirst().run();
+
+        assertEquals(List.of(3, 4), events);
+    }
 }
@@ -6,17 +6,25 @@
 
 package nl.colorize.util;
 
+import com.google.common.util.concurrent.Uninterruptibles;
 import org.junit.jupiter.api.Test;
 
+import java.time.Duration;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.Flow.Subscriber;
 import java.util.concurrent.Flow.Subscription;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.stream.Stream;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
 class SubjectTest {
 
@@ -134,6 +142,66 @@ class SubjectTest {
         assertEquals("[1]", received.toString());
     }
 
+    @Test
+    void manyConcurrentAsyncOperations() throws InterruptedException {
+        int count = 20_000;
+        CountDownLatch done = new CountDownLatch(count);
+        AtomicInteger sum = new AtomicInteger(0);
+
+        for (int i = 0; i < count; i++) {
+            Subject.runAsync(() -> {
+                Thread.sleep(100);
+                return 1;
+            }).subscribe(value -> {
+                sum.addAndGet(value);
+                done.countDown();
+            });
+        }
+
+        assertTrue(done.await(30, TimeUnit.SECONDS));
+        assertEquals(count, sum.get());
+    }
+
+    @Test
+    void runAsyncWithExecutor() throws InterruptedException {
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        List<String> received = new CopyOnWriteArrayList<>();
+        CountDownLatch done = new CountDownLatch(1);
+
+        Subject.runAsync(() -> Thread.currentThread().getName(), executor)
+            .subscribe(name -> {
+                received.add(name);
+                done.countDown();
+            });
+
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertFalse(received.contains(Thread.currentThread().getName()));
+        executor.shutdown();
+    }
+
+    @Test
+    void cancelInterruptsAsyncOperation() throws InterruptedException {
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch interrupted = new CountDownLatch(1);
+
+        Subject<String> subject = Subject.runAsync(() -> {
+            started.countDown();
+            try {
+                Thread.sleep(10_000);
+                return "done";
+            } catch (InterruptedException e) {
+                interrupted.countDown();
+                throw e;
+            }
+        });
+
+        Subscription subscription = subject.subscribe(_ -> {});
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        subscription.cancel();
+
+        assertTrue(interrupted.await(5, TimeUnit.SECONDS));
+    }
+
     @Test
     void map() {
         List<String> received = new ArrayList<>();
@@ -180,6 +248,178 @@ class SubjectTest {
         assertEquals("[a, c]", received.toString());
     }
 
+    @Test
+    void fuseChainedOperators() {
+        List<String> received = new ArrayList<>();
+        AtomicInteger evaluated = new AtomicInteger(0);
+
+        Subject<Integer> subject = new Subject<>();
+        subject
+            .map(x -> {
+                evaluated.incrementAndGet();
+                return x * 2;
+            })
+            .filter(x -> x > 2)
+            .map(x -> "#" + x)
+            .subscribe(received::add);
+
+        subject.next(1);
+        subject.next(2);
+        subject.next(3);
+
+        assertEquals("[#4, #6]", received.toString());
+        assertEquals(3, evaluated.get());
+    }
+
+    @Test
+    void intermediateOperatorSubjectCanStillBeUsed() {
+        List<Integer> intermediate = new ArrayList<>();
+        List<Integer> fused = new ArrayList<>();
+
+        Subject<Integer> subject = new Subject<>();
+        Subject<Integer> doubled = subject.map(x -> x * 2);
+        doubled.map(x -> x + 1).subscribe(fused::add);
+
+        subject.next(1);
+        doubled.subscribe(intermediate::add);
+        subject.next(2);
+
+        assertEquals("[3, 5]", fused.toString());
+        assertEquals("[4]", intermediate.toString());
+    }
+
+    @Test
+    void fusedChainHasSingleSubscriber() {
+        Subject<Integer> subject = new Subject<>();
+        subject
+            .map(x -> x * 2)
+            .filter(x -> x > 2)
+            .map(x -> x + 1)
+            .map(String::valueOf)
+            .subscribe(_ -> {});
+
+        assertEquals(1, subject.getSubscriberCount());
+    }
+
+    @Test
+    void fusingDoesNotInterruptAsyncOperation() throws InterruptedException {
+        CountDownLatch done = new CountDownLatch(1);
+        List<String> received = new CopyOnWriteArrayList<>();
+
+        Subject.runAsync(() -> {
+                Thread.sleep(100);
+                return 1;
+            })
+            .map(x -> x * 2)
+            .map(x -> "#" + x)
+            .subscribe(event -> {
+                received.add(event);
+                done.countDown();
+            });
+
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertEquals("[#2]", received.toString());
+    }
+
+    @Test
+    void fusedIntermediateSubjectDoesNotRetainErrors() {
+        List<Throwable> errors = new ArrayList<>();
+        List<Integer> received = new ArrayList<>();
+
+        Subject<Integer> subject = new Subject<>();
+        Subject<Integer> doubled = subject.map(x -> x * 2);
+        doubled.map(x -> x + 1).subscribe(_ -> {}, _ -> {});
+
+        for (int i = 0; i < 1000; i++) {
+            subject.nextError(new IllegalStateException("Error " + i));
+        }
+        doubled.subscribe(received::add, errors::add);
+        subject.next(1);
+        subject.nextError(new IllegalStateException("Last"));
+
+        assertEquals("[2]", received.toString());
+        assertEquals(1, errors.size());
+        assertEquals(1, subject.getSubscriberCount());
+    }
+
+    @Test
+    void sharedIntermediateSubjectAppliesStageOnce() {
+        AtomicInteger calls = new AtomicInteger(0);
+        List<String> received = new ArrayList<>();
+
+        Subject<Integer> subject = new Subject<>();
+        Subject<Integer> doubled = subject.map(x -> {
+            calls.incrementAndGet();
+            return x * 2;
+        });
+        doubled.map(x -> "a" + x).subscribe(received::add);
+        doubled.map(x -> "b" + x).subscribe(received::add);
+        subject.next(1);
+        subject.next(2);
+
+        assertEquals(2, calls.get());
+        assertEquals("[a2, b2, a4, b4]", received.toString());
+        assertEquals(1, subject.getSubscriberCount());
+    }
+
+    @Test
+    void subscribedIntermediateSubjectAppliesStageOnce() {
+        AtomicInteger calls = new AtomicInteger(0);
+        List<String> received = new ArrayList<>();
+
+        Subject<Integer> subject = new Subject<>();
+        Subject<Integer> doubled = subject.map(x -> {
+            calls.incrementAndGet();
+            return x * 2;
+        });
+        Subject<Integer> filtered = doubled.filter(x -> x > 2);
+        filtered.map(x -> "a" + x).subscribe(received::add);
+        doubled.subscribe(x -> received.add("b" + x));
+        filtered.subscribe(x -> received.add("c" + x));
+        subject.next(1);
+        subject.next(2);
+
+        assertEquals(2, calls.get());
+        assertEquals("[b2, b4, c4, a4]", received.toString());
+        assertEquals(1, subject.getSubscriberCount());
+    }
+
+    @Test
+    void operatorChainWithManyEvents() {
+        AtomicInteger counter = new AtomicInteger(0);
+        Subject<Integer> subject = new Subject<>();
+        subject.map(x -> x + 1)
+            .filter(x -> x % 2 == 0)
+            .map(x -> x / 2)
+            .filter(x -> x > 0)
+            .subscribe(_ -> counter.incrementAndGet());
+
+        for (int i = 0; i < 1_000_000; i++) {
+            subject.next(i);
+        }
+
+        assertEquals(500_000, counter.get());
+    }
+
+    @Test
+    void subscribeAndCancelManySubscribers() {
+        Subject<String> subject = new Subject<>();
+        List<Subscription> subscriptions = new ArrayList<>();
+        AtomicInteger counter = new AtomicInteger(0);
+
+        for (int i = 0; i < 10; i++) {
+            subscriptions.add(subject.subscribe(_ -> counter.incrementAndGet()));
+        }
+
+        subscriptions.get(0).cancel();
+        subscriptions.get(5).cancel();
+        subscriptions.get(9).cancel();
+        subscriptions.get(5).cancel();
+        subject.next("a");
+
+        assertEquals(7, counter.get());
+    }
+
     @Test
     void subscribeOther() {
         List<String> received = new ArrayList<>();
@@ -348,4 +588,493 @@ class SubjectTest {
 
         assertEquals(List.of("event", "error", "event", "completed"), received);
     }
+
+    @Test
+    void requestLimitsDelivery() {
+        Subject<String> subject = new Subject<>();
+        DemandSubscriber subscriber = new DemandSubscriber(2);
+        subject.subscribe(subscriber);
+
+        subject.next("a");
+        subject.next("b");
+        subject.next("c");
+        subject.next("d");
+
+        assertEquals("[a, b]", subscriber.received.toString());
+
+        subscriber.subscription.request(1);
+
+        assertEquals("[a, b, c]", subscriber.received.toString());
+
+        subscriber.subscription.request(Long.MAX_VALUE);
+        subject.next("e");
+
+        assertEquals("[a, b, c, d, e]", subscriber.received.toString());
+    }
+
+    @Test
+    void requestUndeliveredEvents() {
+        Subject<String> subject = Subject.of("a", "b", "c");
+        DemandSubscriber subscriber = new DemandSubscriber(1);
+        subject.subscribe(subscriber);
+
+        assertEquals("[a]", subscriber.received.toString());
+
+        subscriber.subscription.request(5);
+
+        assertEquals("[a, b, c]", subscriber.received.toString());
+    }
+
+    @Test
+    void requestMoreFromWithinSubscriber() {
+        Subject<Integer> subject = new Subject<>();
+        List<Integer> received = new ArrayList<>();
+
+        subject.subscribe(new Subscriber<>() {
+            private Subscription subscription;
+
+            @Override
+            public void onSubscribe(Subscription subscription) {
+                this.subscription = subscription;
+                subscription.request(1);
+            }
+
+            @Override
+            public void onNext(Integer item) {
+                received.add(item);
+                subscription.request(1);
+            }
+
+            @Override
+            public void onError(Throwable throwable) {
+            }
+
+            @Override
+            public void onComplete() {
+            }
+        });
+
+        for (int i = 0; i < 10_000; i++) {
+            subject.next(i);
+        }
+
+        assertEquals(10_000, received.size());
+    }
+
+    @Test
+    void dropOldestWhenBufferIsFull() {
+        Subject<String> subject = new Subject<String>()
+            .withBackpressure(2, Subject.OverflowStrategy.DROP_OLDEST);
+        DemandSubscriber subscriber = new DemandSubscriber(1);
+        subject.subscribe(subscriber);
+
+        subject.next("a");
+        subject.next("b");
+        subject.next("c");
+        subject.next("d");
+        subscriber.subscription.request(10);
+
+        assertEquals("[a, c, d]", subscriber.received.toString());
+    }
+
+    @Test
+    void dropNewestWhenBufferIsFull() {
+        Subject<String> subject = new Subject<String>()
+            .withBackpressure(2, Subject.OverflowStrategy.DROP_NEWEST);
+        DemandSubscriber subscriber = new DemandSubscriber(1);
+        subject.subscribe(subscriber);
+
+        subject.next("a");
+        subject.next("b");
+        subject.next("c");
+        subject.next("d");
+        subscriber.subscription.request(10);
+
+        assertEquals("[a, b, c]", subscriber.received.toString());
+    }
+
+    @Test
+    void errorWhenBufferIsFull() {
+        Subject<String> subject = new Subject<String>()
+            .withBackpressure(1, Subject.OverflowStrategy.ERROR);
+        DemandSubscriber subscriber = new DemandSubscriber(1);
+        subject.subscribe(subscriber);
+
+        subject.next("a");
+        subject.next("b");
+        subject.next("c");
+        subject.next("d");
+        subscriber.subscription.request(10);
+
+        assertEquals("[a]", subscriber.received.toString());
+        assertEquals(1, subscriber.errors.size());
+        assertEquals(IllegalStateException.class, subscriber.errors.getFirst().getClass());
+    }
+
+    @Test
+    void blockWhenBufferIsFull() throws InterruptedException {
+        Subject<Integer> subject = new Subject<Integer>()
+            .withBackpressure(2, Subject.OverflowStrategy.BLOCK);
+        DemandSubscriber subscriber = new DemandSubscriber(1);
+        subject.subscribe(subscriber);
+
+        CountDownLatch done = new CountDownLatch(1);
+        Thread producer = new Thread(() -> {
+            for (int i = 0; i < 100; i++) {
+                subject.next(i);
+            }
+            done.countDown();
+        });
+        producer.start();
+
+        assertFalse(done.await(100, TimeUnit.MILLISECONDS));
+
+        while (!done.await(1, TimeUnit.MILLISECONDS)) {
+            subscriber.subscription.request(1);
+        }
+        subscriber.subscription.request(10);
+
+        assertEquals(100, subscriber.received.size());
+        assertEquals(0, subscriber.received.getFirst());
+        assertEquals(99, subscriber.received.getLast());
+    }
+
+    @Test
+    void completeAfterBufferedEvents() {
+        Subject<String> subject = new Subject<>();
+        DemandSubscriber subscriber = new DemandSubscriber(1);
+        subject.subscribe(subscriber);
+
+        subject.next("a");
+        subject.next("b");
+        subject.complete();
+
+        assertEquals("[a]", subscriber.received.toString());
+        assertEquals(0, subscriber.completed.get());
+
+        subscriber.subscription.request(1);
+
+        assertEquals("[a, b]", subscriber.received.toString());
+        assertEquals(1, subscriber.completed.get());
+    }
+
+    @Test
+    void invalidRequestCancelsSubscription() {
+        Subject<String> subject = new Subject<>();
+        DemandSubscriber subscriber = new DemandSubscriber(1);
+        subject.subscribe(subscriber);
+        subscriber.subscription.request(0);
+        subject.next("a");
+
+        assertEquals("[]", subscriber.received.toString());
+        assertEquals(IllegalArgumentException.class, subscriber.errors.getFirst().getClass());
+    }
+
+    @Test
+    void asyncSubjectPreservesOrder() throws InterruptedException {
+        Subject<Integer> subject = Subject.async();
+        List<Integer> received = new CopyOnWriteArrayList<>();
+        CountDownLatch done = new CountDownLatch(1);
+        subject.subscribe(received::add, _ -> {}, done::countDown);
+
+        for (int i = 0; i < 10_000; i++) {
+            subject.next(i);
+        }
+        subject.complete();
+
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertEquals(10_000, received.size());
+        for (int i = 0; i < 10_000; i++) {
+            assertEquals(i, received.get(i));
+        }
+    }
+
+    @Test
+    void slowSubscriberDoesNotBlockPublisher() throws InterruptedException {
+        Subject<String> subject = Subject.async(Executors.newCachedThreadPool());
+        List<String> fast = new CopyOnWriteArrayList<>();
+        List<String> slow = new CopyOnWriteArrayList<>();
+        CountDownLatch slowDone = new CountDownLatch(3);
+
+        subject.subscribe(fast::add);
+        subject.subscribe(event -> {
+            Uninterruptibles.sleepUninterruptibly(100, TimeUnit.MILLISECONDS);
+            slow.add(event);
+            slowDone.countDown();
+        });
+
+        long start = System.nanoTime();
+        subject.next("a");
+        subject.next("b");
+        subject.next("c");
+        long publishTime = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+        assertTrue(publishTime < 100, "Publishing took " + publishTime + " ms");
+        assertTrue(slowDone.await(5, TimeUnit.SECONDS));
+        assertEquals("[a, b, c]", fast.toString());
+        assertEquals("[a, b, c]", slow.toString());
+    }
+
+    @Test
+    void observeOn() throws InterruptedException {
+        Subject<String> subject = new Subject<>();
+        List<String> threads = new CopyOnWriteArrayList<>();
+        CountDownLatch done = new CountDownLatch(1);
+
+        subject.observeOn(Executors.newSingleThreadExecutor())
+            .subscribe(_ -> threads.add(Thread.currentThread().getName()), _ -> {}, done::countDown);
+        subject.next("a");
+        subject.complete();
+
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertEquals(1, threads.size());
+        assertFalse(threads.contains(Thread.currentThread().getName()));
+    }
+
+    @Test
+    void replayNothing() {
+        Subject<String> subject = new Subject<String>().withReplay(Subject.ReplayPolicy.none());
+        subject.next("a");
+        subject.next("b");
+
+        List<String> received = new ArrayList<>();
+        subject.subscribe(received::add);
+        subject.next("c");
+
+        assertEquals("[c]", received.toString());
+    }
+
+    @Test
+    void replayLastEvents() {
+        Subject<Integer> subject = new Subject<Integer>().withReplay(Subject.ReplayPolicy.last(3));
+        for (int i = 1; i <= 100; i++) {
+            subject.next(i);
+        }
+
+        List<Integer> received = new ArrayList<>();
+        subject.subscribe(received::add);
+
+        assertEquals("[98, 99, 100]", received.toString());
+    }
+
+    @Test
+    void replayLastValue() {
+        Subject<String> subject = new Subject<String>().withReplay(Subject.ReplayPolicy.lastValue());
+        subject.next("a");
+        subject.nextError(new IllegalStateException());
+        subject.next("b");
+
+        List<String> received = new ArrayList<>();
+        List<Throwable> errors = new ArrayList<>();
+        subject.subscribe(received::add, errors::add);
+
+        assertEquals("[b]", received.toString());
+        assertEquals(0, errors.size());
+    }
+
+    @Test
+    void replayTimeWindow() {
+        Subject<String> subject = new Subject<String>()
+            .withReplay(Subject.ReplayPolicy.window(Duration.ofMillis(100)));
+        subject.next("a");
+        Uninterruptibles.sleepUninterruptibly(200, TimeUnit.MILLISECONDS);
+        subject.next("b");
+
+        List<String> received = new ArrayList<>();
+        subject.subscribe(received::add);
+
+        assertEquals("[b]", received.toString());
+    }
+
+    @Test
+    void replayManyEvents() {
+        Subject<Integer> subject = new Subject<>();
+        for (int i = 0; i < 100_000; i++) {
+            subject.next(i);
+        }
+
+        AtomicInteger counter = new AtomicInteger(0);
+        subject.subscribe(_ -> counter.incrementAndGet());
+
+        assertEquals(100_000, counter.get());
+    }
+
+    @Test
+    void bufferByCount() {
+        Subject<Integer> subject = new Subject<>();
+        List<List<Integer>> received = new ArrayList<>();
+        subject.buffer(3).subscribe(received::add);
+
+        for (int i = 1; i <= 7; i++) {
+            subject.next(i);
+        }
+        subject.complete();
+
+        assertEquals("[[1, 2, 3], [4, 5, 6], [7]]", received.toString());
+    }
+
+    @Test
+    void bufferByTime() throws InterruptedException {
+        Subject<Integer> subject = new Subject<>();
+        List<List<Integer>> received = new CopyOnWriteArrayList<>();
+        CountDownLatch done = new CountDownLatch(1);
+        subject.buffer(Duration.ofMillis(100)).subscribe(received::add, _ -> {}, done::countDown);
+
+        subject.next(1);
+        subject.next(2);
+        Uninterruptibles.sleepUninterruptibly(300, TimeUnit.MILLISECONDS);
+        subject.next(3);
+        subject.complete();
+
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertEquals("[[1, 2], [3]]", received.toString());
+    }
+
+    @Test
+    void bufferByTimeOnlyRunsWhileSubscribed() {
+        Subject<Integer> subject = new Subject<>();
+        Subject<List<Integer>> buffered = subject.buffer(Duration.ofMillis(50));
+        List<List<Integer>> received = new CopyOnWriteArrayList<>();
+
+        subject.next(1);
+        Uninterruptibles.sleepUninterruptibly(200, TimeUnit.MILLISECONDS);
+        Subscription subscription = buffered.subscribe(received::add);
+        subject.next(2);
+
+        assertEquals(0, received.size());
+
+        Uninterruptibles.sleepUninterruptibly(200, TimeUnit.MILLISECONDS);
+        subscription.cancel();
+
+        assertEquals("[[2]]", received.toString());
+
+        subject.next(3);
+        Uninterruptibles.sleepUninterruptibly(200, TimeUnit.MILLISECONDS);
+        buffered.subscribe(received::add);
+        subject.next(4);
+        Uninterruptibles.sleepUninterruptibly(200, TimeUnit.MILLISECONDS);
+
+        assertEquals("[[2], [4]]", received.toString());
+    }
+
+    @Test
+    void windowByCount() {
+        Subject<Integer> subject = new Subject<>();
+        List<String> received = new ArrayList<>();
+        AtomicInteger windowCount = new AtomicInteger(0);
+
+        subject.window(2).subscribe(window -> {
+            int index = windowCount.incrementAndGet();
+            window.subscribe(event -> received.add(index + ":" + event), _ -> {},
+                () -> received.add(index + ":end"));
+        });
+
+        subject.next(1);
+        subject.next(2);
+        subject.next(3);
+        subject.complete();
+
+        assertEquals("[1:1, 1:2, 1:end, 2:3, 2:end]", received.toString());
+    }
+
+    @Test
+    void windowByTime() {
+        Subject<Integer> subject = new Subject<>();
+        List<Subject<Integer>> windows = new CopyOnWriteArrayList<>();
+        subject.window(Duration.ofMillis(100)).subscribe(windows::add);
+
+        subject.next(1);
+        subject.next(2);
+        Uninterruptibles.sleepUninterruptibly(300, TimeUnit.MILLISECONDS);
+        subject.next(3);
+
+        assertEquals(2, windows.size());
+    }
+
+    @Test
+    void sample() throws InterruptedException {
+        Subject<Integer> subject = new Subject<>();
+        List<Integer> received = new CopyOnWriteArrayList<>();
+        CountDownLatch done = new CountDownLatch(1);
+        subject.sample(Duration.ofMillis(100)).subscribe(received::add, _ -> {}, done::countDown);
+
+        for (int i = 1; i <= 1000; i++) {
+            subject.next(i);
+        }
+        Uninterruptibles.sleepUninterruptibly(300, TimeUnit.MILLISECONDS);
+        subject.next(1001);
+        subject.complete();
+
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertEquals("[1000, 1001]", received.toString());
+    }
+
+    @Test
+    void debounce() {
+        Subject<String> subject = new Subject<>();
+        List<String> received = new CopyOnWriteArrayList<>();
+        subject.debounce(Duration.ofMillis(100)).subscribe(received::add);
+
+        subject.next("a");
+        subject.next("b");
+        subject.next("c");
+        Uninterruptibles.sleepUninterruptibly(300, TimeUnit.MILLISECONDS);
+        subject.next("d");
+        Uninterruptibles.sleepUninterruptibly(300, TimeUnit.MILLISECONDS);
+
+        assertEquals("[c, d]", received.toString());
+    }
+
+    @Test
+    void debounceDoesNotAccumulateScheduledTasks() {
+        Subject<Integer> subject = new Subject<>();
+        List<Integer> received = new CopyOnWriteArrayList<>();
+        subject.debounce(Duration.ofMillis(100)).subscribe(received::add);
+
+        for (int i = 0; i < 100_000; i++) {
+            subject.next(i);
+        }
+
+        assertTrue(Subject.getScheduledTaskCount() < 10);
+        Uninterruptibles.sleepUninterruptibly(300, TimeUnit.MILLISECONDS);
+        assertEquals("[99999]", received.toString());
+    }
+
+    /**
+     * Subscriber that requests a fixed number of events when subscribing,
+     * and then only receives more events when explicitly requested.
+     */
+    private static class DemandSubscriber implements Subscriber<Object> {
+
+        private long initialDemand;
+        private Subscription subscription;
+        private List<Object> received = new CopyOnWriteArrayList<>();
+        private List<Throwable> errors = new CopyOnWriteArrayList<>();
+        private AtomicInteger completed = new AtomicInteger(0);
+
+        public DemandSubscriber(long initialDemand) {
+            this.initialDemand = initialDemand;
+        }
+
+        @Override
+        public void onSubscribe(Subscription subscription) {
+            this.subscription = subscription;
+            subscription.request(initialDemand);
+        }
+
+        @Override
+        public void onNext(Object item) {
+            received.add(item);
+        }
+
+        @Override
+        public void onError(Throwable error) {
+            errors.add(error);
+        }
+
+        @Override
+        public void onComplete() {
+            completed.incrementAndGet();
+        }
+    }
 }
@@ -10,6 +10,7 @@ import org.junit.jupiter.api.Test;
 
 import java.util.ArrayList;
 import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Queue;
@@ -17,6 +18,7 @@ import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.stream.Stream;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
 
 class SubscribableCollectionTest {
 
@@ -117,4 +119,127 @@ class SubscribableCollectionTest {
         assertEquals("[]", elements.toString());
         assertEquals(List.of("a", "b"), flushed.toList());
     }
+
+    @Test
+    void subscribeAddAll() {
+        SubscribableCollection<String> elements = SubscribableCollection.wrap(new ArrayList<>());
+        Queue<String> queue = new LinkedList<>();
+        elements.getAddedElements().subscribe(queue::add);
+
+        elements.addAll(List.of("a", "b"));
+
+        assertEquals("[a, b]", queue.toString());
+        assertEquals("[a, b]", elements.toString());
+    }
+
+    @Test
+    void removeAllOnlyNotifiesRemovedElements() {
+        SubscribableCollection<String> elements = SubscribableCollection.wrap(new ArrayList<>());
+        Queue<String> queue = new LinkedList<>();
+        elements.getRemovedElements().subscribe(queue::add);
+
+        elements.addAll(List.of("a", "b", "c"));
+        elements.removeAll(List.of("a", "c", "d"));
+
+        assertEquals("[a, c]", queue.toString());
+        assertEquals("[b]", elements.toString());
+    }
+
+    @Test
+    void changeSetForBulkOperations() {
+        SubscribableCollection<Integer> elements = SubscribableCollection.wrap(new ArrayList<>());
+        List<SubscribableCollection.ChangeSet<Integer>> changes = new ArrayList<>();
+        elements.getChanges().subscribe(changes::add);
+
+        List<Integer> values = new ArrayList<>();
+        for (int i = 0; i < 100_000; i++) {
+            values.add(i);
+        }
+
+        elements.addAll(values);
+        elements.add(100_000);
+        elements.removeAll(List.of(1, 2, 3));
+        elements.clear();
+
+        assertEquals(4, changes.size());
+        assertEquals(100_000, changes.get(0).added().size());
+        assertEquals(List.of(100_000), changes.get(1).added());
+        assertEquals(List.of(1, 2, 3), changes.get(2).removed());
+        assertEquals(99_998, changes.get(3).removed().size());
+        assertEquals(List.of(), changes.get(3).added());
+    }
+
+    @Test
+    void noChangeSetWhenNothingChanged() {
+        SubscribableCollection<String> elements = SubscribableCollection.wrap(new ArrayList<>());
+        List<SubscribableCollection.ChangeSet<String>> changes = new ArrayList<>();
+        elements.getChanges().subscribe(changes::add);
+
+        elements.remove("a");
+        elements.removeAll(List.of("b"));
+        elements.clear();
+
+        assertEquals(0, changes.size());
+    }
+
+    @Test
+    void onlyNotifyElementsThatWereAdded() {
+        SubscribableCollection<String> elements = SubscribableCollection.wrap(new LinkedHashSet<>());
+        Queue<String> queue = new LinkedList<>();
+        List<SubscribableCollection.ChangeSet<String>> changes = new ArrayList<>();
+        elements.getAddedElements().subscribe(queue::add);
+        elements.getChanges().subscribe(changes::add);
+
+        elements.add("a");
+        elements.add("a");
+        elements.addAll(List.of("a", "b", "b"));
+
+        assertEquals("[a, b]", queue.toString());
+        assertEquals(List.of("b"), changes.getLast().added());
+        assertEquals(2, changes.size());
+        assertFalse(elements.addAll(List.of("a", "b")));
+    }
+
+    @Test
+    void addAllFromSameCollection() {
+        SubscribableCollection<String> elements = SubscribableCollection.wrap(new ArrayList<>());
+        List<String> added = new ArrayList<>();
+        elements.getAddedElements().subscribe(added::add);
+
+        elements.addAll(List.of("a", "b"));
+        elements.addAll(elements);
+
+        assertEquals(List.of("a", "b", "a", "b"), List.copyOf(elements));
+        assertEquals(List.of("a", "b", "a", "b"), added);
+    }
+
+    @Test
+    void changeSetsAreNotRetainedWithoutSubscribers() {
+        SubscribableCollection<Integer> elements = SubscribableCollection.wrap(new ArrayList<>());
+        List<SubscribableCollection.ChangeSet<Integer>> changes = new ArrayList<>();
+
+        elements.addAll(List.of(1, 2, 3));
+        elements.clear();
+        elements.getChanges().subscribe(changes::add);
+        elements.add(4);
+
+        assertEquals(1, changes.size());
+        assertEquals(List.of(4), changes.getFirst().added());
+    }
+
+    @Test
+    void retainAllWithList() {
+        SubscribableCollection<Integer> elements = SubscribableCollection.wrap(new ArrayList<>());
+        List<Integer> toRetain = new ArrayList<>();
+        for (int i = 0; i < 10_000; i++) {
+            elements.add(i);
+            if (i % 2 == 0) {
+                toRetain.add(i);
+            }
+        }
+
+        elements.retainAll(toRetain);
+
+        assertEquals(5000, elements.size());
+    }
 }